@@ -11,444 +11,3669 @@
  */
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.AnalyzerWrapper;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.*;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.store.SimpleFSDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
 import org.jbibtex.*;
 
+import com.sun.management.ThreadMXBean;
+import com.sun.net.httpserver.HttpServer;
+
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 public class searcher {
 
    private static Analyzer analyzer;                     // analyzer to use
 
-   private static String dir, corpus;                    // directory location and corpus location
-   private static IndexSearcher indexSearcher;           // used to query the index
+   private static String dir;                            // directory location
+   private static List<String> corpus;                   // corpus files, indexed in order
+   private static int shards;                            // indexes the corpus is split over, 0 counts the shard-* dirs
+   private static String mergeTarget;                    // directory to merge the shards into, null to query them
+   private static ReferenceManager<IndexSearcher> searcherManager; // hands out searchers over the latest index
+   private static IndexWriter nrtWriter;                 // long lived writer used in near-real-time mode
+   private static long refreshInterval;                  // ms between near-real-time refreshes, 0 disables it
+   private static ExecutorService ingester;              // indexes files added with !add, one at a time
+   private static String dirType;                        // directory implementation, simple, nio, mmap or auto
+   private static boolean warm;                          // preload the hot index files at startup
+   private static String bench;                          // benchmark to run instead of taking queries
+   private static int[] benchScales;                     // corpus sizes used by the benchmarks, 1 is the corpus itself
+   private static String queryFile, resultFile;          // batch mode, queries to run and where the results go
+   private static String resultFormat;                   // batch results as trec or json lines
    private static IndexWriterConfig.OpenMode openMode;   // create/append/overwrite
 
 
+   private static int threads;                           // number of indexing worker threads
+   private static boolean scanIngest;                    // split the corpus with a BibScanner, else a BibEntryReader
+   private static double ramBuffer;                      // ram buffer of the writer in MB
+   private static int mergeThreads;                      // concurrent merge threads, 0 will auto-detect
+   private static boolean bulk;                          // tune the writer for building a whole index at once
+   private static boolean forceMerge;                    // merge the index down to one segment after building it
+   private static boolean sync;                          // incrementally sync the index with the corpus
+   private static Map<String, Long> indexedHashes;       // citation key -> content hash of the indexed entries when syncing
+
    private static boolean trace = false;                 // display behind the scenes info
 
-   private static ScoreDoc[] scores;                     // document scores from a query
-   private static final int MAXDOCS = 10;                // maximum number of documents to display when querying
-   private static int numHits;                           // numbers of hits from scores
+   private static int pageSize;                          // documents per page of results, !size changes it per session
+   private static int hitLimit;                          // hits counted in the facets of a search, 0 counts them all
+   private static final int EXPORT_PAGE = 1000;          // documents per page when exporting every match
+   private static final PrintWriter console = new PrintWriter(System.out, true); // results for the query prompt
+
+   private static int port;                              // port of the query server, 0 uses the query prompt
+   private static int workers;                           // number of connections the server handles at once
+   private static final int IDLE_TIMEOUT = 30000;        // ms a connection may wait between queries before it is closed
+   private static int slices;                            // threads used to search the segments of one query
+   private static ExecutorService searchExecutor;        // searches segments in parallel, null searches in order
+
+   private static int cacheSize;                         // number of query results to cache, 0 disables it
+   private static long cacheTtl;                         // ms a cached result stays valid, 0 until evicted
+   private static Lru<List<Object>, Results> resultCache; // cached results of recent queries
+   private static int parsedCacheSize;                   // number of parsed queries to cache, 0 disables it
+   private static Lru<String, Query> parsedCache;        // parsed queries and their compiled automata, any reader
+   private static String sortBy;                         // order of the results, relevance, year or -year
+   private static boolean showFacets;                    // count the hits per facet value with every query
+   private static int queryCacheSize;                    // queries in lucene's filter cache, 0 disables it
+   private static long queryCacheRam;                    // MB used by lucene's filter cache
+   private static boolean ngrams;                        // index edge n-grams and suggestions of titles and authors
+   private static volatile boolean prefixFields;         // the index has edge n-grams, prefix queries can use them
+   private static volatile Suggester suggester;          // suggestions of the latest reader, built at each refresh
+   private static int relatedSize;                       // related papers kept per entry at each commit, 0 disables it
+   private static volatile RelatedTable relatedTable;    // the related papers table of the index, read on first use
+
+   // metrics, displayed by !stats and exported in prometheus format by -metrics
+   private static final Map<String, Latency> metrics = new LinkedHashMap<>();
+   private static final Latency queryLatency   = metric("query");       // total time taken by each query
+   private static final Latency refreshQueryLatency = metric("query_refresh"); // queries that overlapped a refresh
+   private static final Latency parseLatency   = metric("query_parse"); // building the query object
+   private static final Latency rewriteLatency = metric("query_rewrite"); // query rewrite, fuzzy terms are expanded here
+   // wildcard, regex and prefix queries are constant score, their terms are expanded per segment in query_search
+   private static final Latency searchLatency  = metric("query_search"); // collecting the top documents
+   private static final Latency renderLatency  = metric("query_render"); // writing the results
+   private static final Latency suggestLatency = metric("suggest");     // each suggest query
+   private static final Latency relatedLatency = metric("related");     // each !related lookup
+   private static final Latency refreshLatency = metric("refresh");     // each near-real-time refresh
+   private static final Latency entryLatency   = metric("index_parse"); // parsing a single bibtex entry
+   private static final Latency buildLatency   = metric("index_build"); // building the document of an entry
+   private static final Latency writeLatency   = metric("index_write"); // handing a document to the writer
+   private static final Latency commitLatency  = metric("index_commit"); // each commit of the index
+   private static final LongAdder queryHits     = new LongAdder();      // total hits of every query
+   private static final LongAdder queryFailures = new LongAdder();      // queries that failed to parse or run
+   private static final AtomicLong refreshes     = new AtomicLong();     // odd while a refresh runs, +2 for each one
+   private static int metricsPort;                                      // port of the metrics endpoint, 0 disables it
+
+   private static final String END_OF_CORPUS = new String("@end");   // marks the end of the indexing queue
+   private static final long FNV_OFFSET = 0xcbf29ce484222325L;        // FNV-1a hash parameters
+   private static final long FNV_PRIME  = 0x100000001b3L;
+
+   // index files read by -warm: terms dictionary, postings, doc values, norms, points and compound files
+   private static final List<String> WARM_FILES = Arrays.asList("tim", "tip", "doc", "pos", "pay", "dvd", "dvm",
+                                                                "nvd", "nvm", "dim", "dii", "cfs");
+
+   private static final String[] ID_FIELDS = { "id", "bibkey" };     // loaded by the batch mode
+   private static final String KEY_FIELD = "citekey";                 // lowercased citation key, one document each
+   private static final String[] HIT_FIELDS = { "key", "title", "year" }; // displayed with every hit
+
+   // stored fields and the text of results are decoded into buffers owned by the thread rendering them
+   private static final ThreadLocal<HitFields> idFields = ThreadLocal.withInitial(() -> new HitFields(ID_FIELDS));
+   private static final ThreadLocal<HitFields> hitFields = ThreadLocal.withInitial(() -> new HitFields(HIT_FIELDS));
+   private static final ThreadLocal<StringBuilder> renderBuffer = ThreadLocal.withInitial(() -> new StringBuilder(4096));
+
+   private static final String[] FACET_DIMS = { "type", "author", "journal" };  // sorted set facets, year is numeric
+   private static final int FACET_SIZE = 10;                                     // values displayed per facet
+   private static final int YEAR_SPAN = 4096;                                    // years counted in an array, 0-4095
+
+   // fields with edge n-gram subfields (title_prefix, ...) for prefix queries when indexed with -ngram
+   private static final List<String> PREFIX_FIELDS = Arrays.asList("title", "author", "key");
+   private static final String PREFIX_SUFFIX = "_prefix";
+   private static final int MAX_GRAM = 20;                            // longer prefixes use a PrefixQuery
+   private static final String SUGGEST_FIELD = "suggest";             // titles and authors for the suggester
+
+   private static final long BULK_RAM = 256;                          // MB ram buffer of the bulk-load profile
+   private static final int BULK_SEGMENTS_PER_TIER = 20;              // twice the default, merges half as often
+
+   private static final String RELATED_FILE = "related.tsv";          // related papers table, in the index directory
+   private static final int RELATED_TERMS = 25;                       // abstract terms in the query of a paper
+   private static final int KEYWORDS = 10;                            // keywords displayed by !keywords
+
+   private static final long BENCH_WARMUP  = 1000;                    // ms of warmup for each measurement
+   private static final long BENCH_MEASURE = 2000;                    // ms measured for each measurement
+
+   // queries run by the benchmarks, in the same syntax as the query prompt
+   private static final String[] BENCH_QUERIES = {
+           "term abstract have",
+           "phrase abstract (recent years)",
+           "boolean abstract +recent +years -have",
+           "multiphrase abstract (distributed computing) and (recent years)",
+           "prefix abstract stu",
+           "wildcard year 201*",
+           "fuzzy title computing",
+           "regex abstract comp[a-z]+",
+           "termrange year 2015,2017",
+           "disjunction 5; abstract title; distributed computing",
+           "matchall"
+   };
+
+
+   public static void main(String[] args) {
+
+
+      /* Default Values */
+      openMode = IndexWriterConfig.OpenMode.CREATE_OR_APPEND; // set the writer config to create
+      dir      = getDir() + "/index.lucene";                  // index directory
+      corpus   = Arrays.asList("cs-bibliography.bib");        // corpus file
+      shards   = 0;                                           // whatever the index directory holds
+      threads  = 1;                                           // index on the main thread
+      scanIngest = true;                                      // split the corpus by scanning the mapped file
+      ramBuffer    = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB; // default writer ram buffer
+      mergeThreads = 0;                                            // let the merge scheduler decide
+      sync     = false;                                       // only index when there is no index
+      refreshInterval = 0;                                    // searchers are never refreshed
+      dirType  = "auto";                                      // let lucene pick the best directory for the platform
+      port     = 0;                                           // take queries from the prompt
+      workers  = 4 * Runtime.getRuntime().availableProcessors(); // server connections handled at once
+      slices   = 0;                                           // search segments on the calling thread
+      cacheSize = 1000;  cacheTtl = 0;                        // cache the results of the last 1000 queries
+      parsedCacheSize = 1000;                                 // and the last 1000 parsed queries
+      queryCacheSize = 1000;  queryCacheRam = 32;             // lucene's default filter cache
+      warm     = false;                                       // index files are read on demand
+      benchScales = new int[]{ 1 };                           // benchmark the corpus as it is
+      resultFormat = "trec";                                  // batch results in trec run format
+      sortBy   = "relevance";                                 // best matches first
+      showFacets = false;                                     // only the top documents
+      pageSize = 10;                                          // the top 10 documents of a query
+
+      argCheck(args);
+      analyzer = new PrefixAnalyzer(new StandardAnalyzer());  // the standard analyzer, with edge n-grams for *_prefix
+
+      IndexWriter[] indexWriters;                             // used to write to the index, one per shard
+
+      if (shards == 0) { shards = Math.max(countShards(Paths.get(dir)), 1); } // an unsharded index is a single shard
+      if (shards > 1) {
+         threads = Math.max(threads, shards);                 // every shard is built in parallel
+         if (slices == 0) { slices = Math.min(shards, Runtime.getRuntime().availableProcessors()); } // and searched in parallel
+      }
+
+      if (bulk && ramBuffer == IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB) { // fewer, larger flushed segments
+         ramBuffer = Math.min(BULK_RAM, Runtime.getRuntime().maxMemory() / 4 / shards >> 20);
+      }
+
+      boolean nrt = refreshInterval > 0 && openMode != null;  // near-real-time needs a writer that stays open
+      if (nrt && shards > 1) { println("Near-real-time mode needs a single shard, ignoring -nrt..."); nrt = false; }
+
+      try { // if something happens here we are doomed...
+
+         if (metricsPort != 0) { serveMetrics(); }                    // export metrics while everything else runs
+
+         // the directories of the index, the index directory itself unless it is sharded
+         Directory[] directories = new Directory[shards];
+         for (int i = 0; i < shards; i++) {
+            directories[i] = openDirectory(dirType, (shards == 1) ? Paths.get(dir) : Paths.get(dir, "shard-" + i));
+         }
+
+         // .CREATE_OR_APPEND != .CREATE OR .APPEND
+         boolean index = sync || !DirectoryReader.indexExists(directories[0]) ||
+                         openMode == IndexWriterConfig.OpenMode.CREATE || openMode == IndexWriterConfig.OpenMode.APPEND;
+
+         if (index || nrt) {
+
+            indexWriters = new IndexWriter[shards];
+            for (int i = 0; i < shards; i++) { indexWriters[i] = new IndexWriter(directories[i], getWriterConfig()); } // create the writers
+
+            if (index) {
+               if (sync) {                                            // find out what is already indexed
+                  indexedHashes = new ConcurrentHashMap<>();
+                  for (IndexWriter indexWriter : indexWriters) { indexedHashes.putAll(getHashes(indexWriter)); }
+               }
+               if (getDocs(indexWriters, corpus) == 0) {              // stream the documents in the corpus
+                  println("Index creation failed..."); System.exit(1); // there are no documents in the index, running the program is useless
+               }
+               for (IndexWriter indexWriter : indexWriters) { commit(indexWriter); } // commit documents to the writers
+               if (bulk || forceMerge) { optimize(indexWriters, directories); }   // the layout the queries will see
+               if (relatedSize > 0) { updateRelated(directories); }  // bring the related papers up to date
+            }
+
+            if (nrt) { nrtWriter = indexWriters[0]; }                 // keep the writer open for new documents
+            else {                                                    // writers are no longer needed, close them
+               for (IndexWriter indexWriter : indexWriters) { indexWriter.close(); }
+            }
+         }
+
+         if (warm) { for (Directory directory : directories) { warmDirectory(directory); } } // read the hot files into the page cache
+
+         // searchers come from the writer in near-real-time mode, so uncommitted documents can be searched
+         if (slices > 0) { searchExecutor = Executors.newFixedThreadPool(slices); }
+         if (cacheSize > 0) { resultCache = new Lru<>(cacheSize, cacheTtl); }
+         if (parsedCacheSize > 0) { parsedCache = new Lru<>(parsedCacheSize, 0); } // survives refreshes, queries dont hold readers
+
+         // lucene's own cache of filter clauses, range filters are worth caching the first time they are seen
+         if (queryCacheSize == 0) { IndexSearcher.setDefaultQueryCache(null); }
+         else {
+            IndexSearcher.setDefaultQueryCache(new LRUQueryCache(queryCacheSize, queryCacheRam << 20));
+            IndexSearcher.setDefaultQueryCachingPolicy(new QueryCachingPolicy() {
+
+               private final QueryCachingPolicy usage = new UsageTrackingQueryCachingPolicy();
+
+               @Override
+               public void onUse(Query query) { usage.onUse(query); }
+               @Override
+               public boolean shouldCache(Query query) throws IOException {
+                  return query instanceof TermRangeQuery || query instanceof PointRangeQuery || usage.shouldCache(query);
+               }
+            });
+         }
+         SearcherFactory factory = new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+               return new IndexSearcher(reader, searchExecutor);    // with an executor each segment is a slice
+            }
+         };
+
+         if (nrt)             { searcherManager = new SearcherManager(nrtWriter, factory); }
+         else if (shards > 1) { searcherManager = new ShardSearcherManager(directories, factory); } // one reader over every shard
+         else                 { searcherManager = new SearcherManager(directories[0], factory); }
+
+         updateReaderState();                                        // n-grams and suggestions of the index as it is
+         searcherManager.addListener(new ReferenceManager.RefreshListener() {
+
+            private long start;                                       // only the refresh thread calls these
+
+            @Override
+            public void beforeRefresh() { start = System.nanoTime(); refreshes.incrementAndGet(); }
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+               try {
+                  if (!didRefresh) { return; }
+                  refreshLatency.record(System.nanoTime() - start);
+                  if (resultCache != null) { resultCache.clear(); }   // results of the old reader are useless now
+                  try { updateReaderState(); } catch (IOException e) { e.printStackTrace(); } // off the query path
+               }
+               finally { refreshes.incrementAndGet(); }              // even again, the refresh is over
+            }
+         });
+
+         ScheduledExecutorService refresher = null;
+         if (nrt) {                                                   // refresh the searcher in the background
+            ingester  = Executors.newSingleThreadExecutor();
+            refresher = Executors.newSingleThreadScheduledExecutor();
+            refresher.scheduleWithFixedDelay(() -> {
+               try { searcherManager.maybeRefresh(); } catch (IOException e) { e.printStackTrace(); }
+            }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+         }
+
+         if (mergeTarget != null) { mergeShards(directories, Paths.get(mergeTarget)); } // an offline job, no queries
+         else if (bench != null)  { runBench(bench); }                // benchmarks replace the query prompt
+         else if (queryFile != null) { batch(); }                     // run a file of queries and stop
+         else if (port != 0) { serve(); }                             // the server runs until it is killed
+         else                { getInput(); }                          // get queries from user
+
+         if (nrt) {                                                   // nothing else will be indexed, save it all
+            ingester.shutdown();                                      // let any running !add finish first
+            ingester.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            refresher.shutdown();                                     // interrupting a refresh would close the writer
+            refresher.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            commit(nrtWriter);
+            nrtWriter.close();
+            if (relatedSize > 0) { updateRelated(directories); }     // documents added with !add
+         }
+         searcherManager.close();
+         if (searchExecutor != null) { searchExecutor.shutdown(); }
+
+      } catch (Exception e) { e.printStackTrace(); System.exit(1); }  // error found, display it and fail the run
+   }
+
+   /**
+    * getWriterConfig will create the config for an index writer from the given arguments
+    * @return the writer config
+    */
+   private static IndexWriterConfig getWriterConfig() {
+
+      IndexWriterConfig writerConfig = new IndexWriterConfig(analyzer);    // use the analyzer for index creation
+
+      // set the mode of the writer, syncing and near-real-time will always use an existing index
+      writerConfig.setOpenMode(sync || openMode == null ? IndexWriterConfig.OpenMode.CREATE_OR_APPEND : openMode);
+      writerConfig.setRAMBufferSizeMB(ramBuffer);                          // flush segments once the buffer is full
+
+      int merges = mergeThreads;
+      if (bulk) {                                                          // the index is built once, searched later
+
+         writerConfig.setUseCompoundFile(false);                           // flushed segments stay as separate files
+         TieredMergePolicy policy = new TieredMergePolicy();
+         policy.setNoCFSRatio(0.0);                                        // and so do merged segments
+         policy.setSegmentsPerTier(BULK_SEGMENTS_PER_TIER);                // merge less often, in bigger steps
+         policy.setMaxMergeAtOnce(BULK_SEGMENTS_PER_TIER);
+         writerConfig.setMergePolicy(policy);
+
+         if (merges == 0) { merges = Math.max(1, Runtime.getRuntime().availableProcessors() / 2); } // leave cores for parsing
+      }
+
+      if (merges > 0) {                                                    // merges run in the background while indexing
+         ConcurrentMergeScheduler scheduler = new ConcurrentMergeScheduler();
+         scheduler.setMaxMergesAndThreads(merges + 5, merges);
+         writerConfig.setMergeScheduler(scheduler);
+      }
+
+      return writerConfig;
+   }
+
+   /**
+    * optimize will report the layout of a freshly built index, and with -fm merge every shard down to a single
+    *    segment in parallel and report it again, so the cost of the merge can be weighed against its gain
+    * @param indexWriters the writers of the shards, committed
+    * @param directories  the directories of the shards
+    */
+   private static void optimize(IndexWriter[] indexWriters, Directory[] directories) throws Exception {
+
+      println("Index layout:");
+      layoutReport("built", directories);
+      if (!forceMerge) { return; }
+
+      long start = System.nanoTime();
+      ExecutorService pool = Executors.newFixedThreadPool(indexWriters.length);
+      ArrayList<Future<?>> merges = new ArrayList<>();
+      for (IndexWriter indexWriter : indexWriters) {
+         merges.add(pool.submit(() -> { indexWriter.forceMerge(1); commit(indexWriter); return null; }));
+      }
+      for (Future<?> merge : merges) { merge.get(); }                      // rethrows anything a merge hit
+      pool.shutdown();
+
+      println(String.format("\tforce merged to one segment per shard in %.2fs", (System.nanoTime() - start) / 1e9));
+      layoutReport("merged", directories);
+   }
+
+   /**
+    * layoutReport will display the number and size of the segments of the latest commit of an index, and how
+    *    fast the benchmark queries run against it
+    * @param label       name of the layout
+    * @param directories the directories of the shards
+    */
+   private static void layoutReport(String label, Directory[] directories) throws Exception {
+
+      int segments = 0, compound = 0;
+      long bytes = 0, largest = 0;
+
+      for (Directory directory : directories) {
+         for (SegmentCommitInfo info : SegmentInfos.readLatestCommit(directory)) {
+            segments++;
+            bytes += info.sizeInBytes();
+            largest = Math.max(largest, info.sizeInBytes());
+            if (info.info.getUseCompoundFile()) { compound++; }
+         }
+      }
+
+      try (MultiReader reader = openReader(directories)) {
+
+         IndexSearcher indexSearcher = new IndexSearcher(reader);
+         indexSearcher.setQueryCache(null);                                 // measure the layout, not the cache
+
+         List<Query> queries = getBenchQueries();
+         runQueries(indexSearcher, queries, 1, 20, new Latency());          // warm up the jvm and the page cache
+         Latency latency = new Latency();
+         long elapsed = runQueries(indexSearcher, queries, 1, 100, latency);
+
+         println(String.format("\t%-7s %4d segment(s), %d compound, %.2f MB, largest %.2f MB, %.0f queries/sec   %s",
+                               label, segments, compound, bytes / 1048576.0, largest / 1048576.0,
+                               latency.count() / (elapsed / 1e9), latency));
+      }
+   }
+
+   /**
+    * openReader will open a single reader over the latest commit of every shard
+    * @param directories the directories of the shards
+    * @return the reader, closing it closes the shard readers
+    */
+   private static MultiReader openReader(Directory[] directories) throws IOException {
+
+      DirectoryReader[] readers = new DirectoryReader[directories.length];
+      for (int i = 0; i < directories.length; i++) { readers[i] = DirectoryReader.open(directories[i]); }
+      return new MultiReader(readers);
+   }
+
+   /**
+    * openDirectory will open the index directory with the requested implementation
+    * @param type the implementation, simple, nio, mmap or auto
+    * @param path location of the index
+    * @return the directory
+    */
+   private static Directory openDirectory(String type, Path path) throws IOException {
+
+      switch (type) {
+
+         case ("simple"): return new SimpleFSDirectory(path);     // a single file position, reads are synchronized
+         case ("nio"):    return new NIOFSDirectory(path);        // positional reads, no locking between threads
+         case ("mmap"):                                           // memory mapped, the os page cache is the buffer
+            MMapDirectory mmap = new MMapDirectory(path);
+            mmap.setPreload(warm);                                // touch every page when a file is opened
+            return mmap;
+         default:         return FSDirectory.open(path);          // let lucene pick for the platform
+      }
+   }
+
+   /**
+    * countShards will count the shard directories of a sharded index
+    * @param path location of the index
+    * @return the number of shard-0, shard-1, ... directories, 0 if the index is not sharded
+    */
+   private static int countShards(Path path) {
+
+      int count = 0;
+      while (Files.isDirectory(path.resolve("shard-" + count))) { count++; }
+      return count;
+   }
+
+   /**
+    * mergeShards will copy the shards of an index into a single new index and merge it down to one segment,
+    *    the shards are left as they are
+    * @param directories the directories of the shards
+    * @param target      location of the merged index
+    */
+   private static void mergeShards(Directory[] directories, Path target) throws IOException {
+
+      long start = System.nanoTime();
+      try (Directory directory = openDirectory(dirType, target);
+           IndexWriter indexWriter = new IndexWriter(directory, getWriterConfig()
+                                                     .setOpenMode(IndexWriterConfig.OpenMode.CREATE))) {
+
+         indexWriter.addIndexes(directories);                     // copies the segments, nothing is re-analyzed
+         indexWriter.forceMerge(1);                               // a single segment, the fastest to search
+         commit(indexWriter);
+
+         println(String.format("Merged %d shard(s) with %d documents into %s in %.2fs", directories.length,
+                               indexWriter.numDocs(), target, (System.nanoTime() - start) / 1e9));
+      }
+   }
+
+   /**
+    * ShardSearcherManager hands out searchers over every shard of an index through a single MultiReader. A
+    *    refresh reopens only the shards that changed, the others are shared with the previous reader.
+    */
+   private static class ShardSearcherManager extends ReferenceManager<IndexSearcher> {
+
+      private final SearcherFactory factory;
+
+      ShardSearcherManager(Directory[] directories, SearcherFactory factory) throws IOException {
+
+         this.factory = factory;
+         DirectoryReader[] readers = new DirectoryReader[directories.length];
+         for (int i = 0; i < directories.length; i++) { readers[i] = DirectoryReader.open(directories[i]); }
+         current = factory.newSearcher(new ShardReader(readers), null);
+         for (DirectoryReader reader : readers) { reader.decRef(); } // now only held by the shard reader
+      }
+
+      @Override
+      protected IndexSearcher refreshIfNeeded(IndexSearcher referenceToRefresh) throws IOException {
+
+         DirectoryReader[] previous = ((ShardReader)referenceToRefresh.getIndexReader()).shards;
+         DirectoryReader[] readers = new DirectoryReader[previous.length];
+         boolean changed = false;
+
+         for (int i = 0; i < previous.length; i++) {
+            readers[i] = DirectoryReader.openIfChanged(previous[i]);
+            if (readers[i] == null) { readers[i] = previous[i]; }  // unchanged, shared with the previous reader
+            else                    { changed = true; }
+         }
+         if (!changed) { return null; }
+
+         try { return factory.newSearcher(new ShardReader(readers), referenceToRefresh.getIndexReader()); }
+         finally {
+            for (int i = 0; i < readers.length; i++) { if (readers[i] != previous[i]) { readers[i].decRef(); } }
+         }
+      }
+
+      @Override
+      protected void decRef(IndexSearcher reference) throws IOException { reference.getIndexReader().decRef(); }
+
+      @Override
+      protected boolean tryIncRef(IndexSearcher reference) { return reference.getIndexReader().tryIncRef(); }
+
+      @Override
+      protected int getRefCount(IndexSearcher reference) { return reference.getIndexReader().getRefCount(); }
+   }
+
+   /**
+    * readerKey will find the key that identifies a point in time view of the index, used by the caches
+    * @param reader the reader of the view
+    * @return the cache key of the reader, or the reader itself when it has none (a reader over shards)
+    */
+   private static Object readerKey(IndexReader reader) {
+      IndexReader.CacheHelper helper = reader.getReaderCacheHelper();
+      return (helper != null) ? helper.getKey() : reader;
+   }
+
+   /**
+    * ShardReader is a MultiReader that keeps its shards, so they can be reopened. Each shard is referenced
+    *    for as long as the shard reader is open.
+    */
+   private static class ShardReader extends MultiReader {
+
+      final DirectoryReader[] shards;
+
+      ShardReader(DirectoryReader[] shards) throws IOException {
+         super(shards, false);                                    // increments the reference count of every shard
+         this.shards = shards;
+      }
+   }
+
+   /**
+    * warmDirectory will read the terms dictionary, postings and doc values of an index once, so the first
+    *    queries do not have to wait on the disk
+    * @param directory the index directory
+    */
+   private static void warmDirectory(Directory directory) throws IOException {
+
+      long start = System.nanoTime(), bytes = 0;
+      byte[] buffer = new byte[1 << 16];
+
+      for (String file : directory.listAll()) {
+
+         String ext = file.substring(file.lastIndexOf('.') + 1);
+         if (!WARM_FILES.contains(ext)) { continue; }             // stored fields and vectors stay cold
+
+         try (IndexInput input = directory.openInput(file, IOContext.READONCE)) {
+            for (long left = input.length(); left > 0; left -= buffer.length) {
+               input.readBytes(buffer, 0, (int)Math.min(left, buffer.length));
+            }
+            bytes += input.length();
+         }
+      }
+
+      println(String.format("Warmed %d MB of index files in %.2fs", bytes >> 20, (System.nanoTime() - start) / 1e9));
+   }
+
+   /**
+    * argCheck will check the arguments for the program
+    * @param args the array of arguments
+    */
+   private static void argCheck(String[] args) {
+      if (args.length == 0) { usage(); }
+
+      for (int i = 0; i < args.length; i++) {
+
+         if (args[i].equals("-f")) {                          // one or more files separated by ','
+            List<String> files = new ArrayList<>();
+            for (String file : args[i+1].split(",")) { if (new File(file).exists()) { files.add(file); } }
+            if (!files.isEmpty()) { corpus = files; }
+            i++;
+         }
+         if (args[i].equals("-shards")) { shards = Integer.parseInt(args[i+1]); i++; }
+         if (args[i].equals("-merge"))  { mergeTarget = args[i+1]; i++; }
+         if (args[i].equals("-i") && Files.isDirectory(Paths.get(args[i + 1]))) { dir = args[i+1]; i++; }
+         if (args[i].equals("-o")) openMode = IndexWriterConfig.OpenMode.CREATE;
+         if (args[i].equals("-a")) openMode = IndexWriterConfig.OpenMode.APPEND;
+         if (args[i].equals("-r")) openMode = null;
+         if (args[i].equals("-s")) sync = true;
+         if (args[i].equals("-t"))      { threads = Integer.parseInt(args[i+1]); i++; }
+         if (args[i].equals("-ingest")) { scanIngest = !args[i+1].equalsIgnoreCase("reader"); i++; }
+         if (args[i].equals("-ram"))    { ramBuffer = Double.parseDouble(args[i+1]); i++; }
+         if (args[i].equals("-merges")) { mergeThreads = Integer.parseInt(args[i+1]); i++; }
+         if (args[i].equals("-bulk"))   bulk = true;
+         if (args[i].equals("-fm"))     forceMerge = true;
+         if (args[i].equals("-nrt"))    { refreshInterval = Long.parseLong(args[i+1]); i++; }
+         if (args[i].equals("-d"))      { dirType = args[i+1].toLowerCase(); i++; }
+         if (args[i].equals("-warm"))   warm = true;
+         if (args[i].equals("-bench"))  { bench = args[i+1].toLowerCase(); i++; }
+         if (args[i].equals("-q"))      { queryFile = args[i+1]; i++; }
+         if (args[i].equals("-sort"))   { sortBy = args[i+1].toLowerCase(); i++; }
+         if (args[i].equals("-facets")) showFacets = true;
+         if (args[i].equals("-ngram"))  ngrams = true;
+         if (args[i].equals("-related")) { relatedSize = Integer.parseInt(args[i+1]); i++; }
+         if (args[i].equals("-n"))      { pageSize = Integer.parseInt(args[i+1]); i++; }
+         if (args[i].equals("-hits"))   { hitLimit = Integer.parseInt(args[i+1]); i++; }
+         if (args[i].equals("-metrics")) { metricsPort = Integer.parseInt(args[i+1]); i++; }
+         if (args[i].equals("-out"))    { resultFile = args[i+1]; i++; }
+         if (args[i].equals("-format")) { resultFormat = args[i+1].toLowerCase(); i++; }
+         if (args[i].equals("-scale"))  { benchScales = Arrays.stream(args[i+1].split(",")).mapToInt(Integer::parseInt).toArray(); i++; }
+         if (args[i].equals("-p"))      { port = Integer.parseInt(args[i+1]); i++; }
+         if (args[i].equals("-w"))      { workers = Integer.parseInt(args[i+1]); i++; }
+         if (args[i].equals("-slices")) { slices = Integer.parseInt(args[i+1]); i++; }
+         if (args[i].equals("-cache"))  { cacheSize = Integer.parseInt(args[i+1]); i++; }
+         if (args[i].equals("-pcache")) { parsedCacheSize = Integer.parseInt(args[i+1]); i++; }
+         if (args[i].equals("-ttl"))    { cacheTtl = Long.parseLong(args[i+1]) * 1000; i++; }
+         if (args[i].equals("-qcache")) {
+            String[] items = args[i+1].split(",");
+            queryCacheSize = Integer.parseInt(items[0]);
+            if (items.length > 1) { queryCacheRam = Long.parseLong(items[1]); }
+            i++;
+         }
+      }
+
+      // a batch run that cannot read its queries or write its results should fail before building anything
+      if (queryFile != null && !Files.isReadable(Paths.get(queryFile))) {
+         printerr("Cannot read the queries file '" + queryFile + "'..."); System.exit(1);
+      }
+      Path results = (resultFile != null) ? Paths.get(resultFile).toAbsolutePath().getParent() : null;
+      if (results != null && !Files.isWritable(results)) {
+         printerr("Cannot write the results file '" + resultFile + "'..."); System.exit(1);
+      }
+   }
+
+   /**
+    * usage() will display the accepted parameters that are completely optional
+    */
+   private static void usage() {
+      printerr("Accepted parameters:\n" +
+              "\t-f <corupus-file>[,<corpus-file>...], will set the corpus file locations, default is cs-bibliography.bib\n" +
+              "\t-i <index-directory>, will set the index directory, default is ./index.lucene\n" +
+              "\t-o, will set the IndexWriterConfig.OpenMode to CREATE, default is CREATE_OR_APPEND\n" +
+              "\t-a, will set the IndexWriterConfig.OpenMode to APPEND\n" +
+              "\t-r, will set the IndexWriterConfig.OpenMode to null, making the program read only\n" +
+              "\t-s, will sync an existing index with the corpus, only changed entries are rewritten\n" +
+              "\t-t <threads>, will index with the given number of worker threads, default is 1\n" +
+              "\t-ingest <scan|reader>, will split the corpus into entries by scanning the mapped file, or through\n" +
+              "\t\tjbibtex's CharacterFilterReader, default is scan\n" +
+              "\t-shards <n>, will split the index over <n> directories (shard-0, shard-1, ...) built in parallel\n" +
+              "\t\tand searched together, default is the number of shard directories in the index directory\n" +
+              "\t-merge <index-directory>, will merge the shards into a single optimized index and stop\n" +
+              "\t-ram <mb>, will set the ram buffer of the writer, default is 16\n" +
+              "\t-merges <threads>, will set the number of concurrent merge threads, default is auto-detected\n" +
+              "\t-bulk, will tune the writer for building a whole index: a large ram buffer, no compound files and\n" +
+              "\t\tfewer, larger merges on a merge thread per two cores, then report the segments and query speed\n" +
+              "\t-fm, will merge the index down to a single segment after building it and report the difference\n" +
+              "\t-nrt <ms>, will keep the writer open and refresh the searcher every <ms> milliseconds,\n" +
+              "\t\tdocuments can then be added with !add while querying\n" +
+              "\t-d <simple|nio|mmap|auto>, will set the index directory implementation, default is auto\n" +
+              "\t-warm, will preload the terms, postings and doc values of the index at startup\n" +
+              "\t-bench <dirs|queries|index|ingest>, will run a benchmark instead of taking queries\n" +
+              "\t-scale <n,n,...>, will run the query, index and ingest benchmarks on the corpus copied n times,\n" +
+              "\t\tdefault is 1\n" +
+              "\t-metrics <port>, will serve the metrics in prometheus format at http://localhost:<port>/metrics\n" +
+              "\t-sort <relevance|year|-year>, will set the order of the results, default is relevance\n" +
+              "\t-facets, will count the hits of every query per type, year, author and journal\n" +
+              "\t-n <size>, will set the number of results per page, default is 10\n" +
+              "\t-hits <n>, will stop counting the facets of a search after about <n> matches, the pages and the total\n" +
+              "\t\tstill see every match so rankings do not change, default is 0 (count them all)\n" +
+              "\t-ngram, will index edge n-grams of titles, authors and keys for fast prefix queries, and the\n" +
+              "\t\ttitles and authors for suggest queries, it should be given every time the index is written\n" +
+              "\t-related <k>, will keep the <k> papers with the most similar abstracts of every paper in a table\n" +
+              "\t\tnext to the index, only new and changed papers are recomputed at each commit\n" +
+              "\t-q <queries-file>, will run every query in the file (one per line, optionally '<qid><tab><query>')\n" +
+              "\t\tin parallel instead of taking queries from the prompt\n" +
+              "\t-out <results-file>, will write the batch results to a file, default is the console\n" +
+              "\t-format <trec|json>, will write the batch results as a trec run or json lines, default is trec\n" +
+              "\t-p <port>, will serve queries on a local socket instead of the prompt, one query per line\n" +
+              "\t-w <workers>, will set the number of connections the server handles at once, default is 4 per core\n" +
+              "\t-slices <threads>, will search the segments of a single query in parallel on <threads> threads\n" +
+              "\t-cache <size>, will cache the results of the last <size> queries, 0 disables it, default is 1000\n" +
+              "\t-ttl <seconds>, will expire cached results after <seconds>, default is never\n" +
+              "\t-pcache <size>, will cache the last <size> parsed queries, 0 disables it, default is 1000\n" +
+              "\t-qcache <queries>[,<mb>], will size lucene's filter cache, 0 disables it, default is 1000,32");
+   }
+
+   /**
+    * getDocs will stream .bib files into the index. Entries are read from the corpus one at a time, converted
+    *    to a document and handed straight to the writer, so heap use does not grow with the size of the corpus.
+    *    With more than one thread the entries are handed to a pool of workers through bounded queues, the
+    *    reader blocks whenever the workers fall behind. Citation keys are hashed onto the workers, so the
+    *    entries of a key always go to the same worker in file order and the last one wins. A sharded index
+    *    gets every entry in the shard of its citation key, the writers of the shards are shared by all workers.
+    * @param indexWriters the writers to add the documents to, one per shard
+    * @param files        the .bib files to index, in order
+    * @return the number of documents indexed
+    */
+   private static int getDocs(IndexWriter[] indexWriters, List<String> files) {
+
+      IngestStats stats = new IngestStats();              // counters shared by the workers
+      for (String file : files) {
+         if (file == null || !new File(file).exists()) { println("'" + file + "' does not exist..."); return 0; }
+      }
+      long start = System.nanoTime();                     // used to report the ingest rate
+      resetPeakHeap();                                    // only measure the peak for this ingest
+
+      List<BlockingQueue<String>> queues = null;          // entries waiting for each worker
+      List<Future<?>> running = null;                     // the workers, done once a worker has exited
+      ExecutorService workers = null;
+
+      try {
+
+         if (threads > 1) {
+
+            queues  = new ArrayList<>();
+            running = new ArrayList<>();
+            workers = Executors.newFixedThreadPool(threads);
+
+            for (int i = 0; i < threads; i++) {
+               BlockingQueue<String> entries = new ArrayBlockingQueue<>(64); // bounded, gives backpressure
+               queues.add(entries);
+               running.add(workers.submit(() -> {         // every worker needs its own parser
+                  try {
+                     BibTeXParser parser = newParser();
+                     String item;
+                     while ((item = entries.take()) != END_OF_CORPUS) {
+                        try { indexEntry(indexWriters, parser, item, stats); }
+                        catch (RuntimeException e) { stats.failed.incrementAndGet(); } // a bad entry, keep going
+                     }
+                  } catch (Exception e) { e.printStackTrace(); }
+               }));
+            }
+         }
+
+         BibTeXParser parser = (queues == null) ? newParser() : null; // single threaded, parse and index on this thread
+         for (String file : files) {
+
+            // get the contents of the corpus file and filter it
+            try (EntrySource entries = openEntries(file, scanIngest)) {
+
+               String raw;                                // raw text of a single entry
+
+               while ((raw = entries.next()) != null) {
+                  if (queues == null) { indexEntry(indexWriters, parser, raw, stats); }
+                  else {                                  // blocks while the worker is busy
+                     int worker = Math.floorMod(citationKey(raw).toLowerCase().hashCode(), threads);
+                     handOff(queues.get(worker), running.get(worker), raw);
+                  }
+               }
+            }
+         }
+
+         if (workers != null) {
+            for (int i = 0; i < threads; i++) { handOff(queues.get(i), running.get(i), END_OF_CORPUS); } // tell each worker to stop
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+         }
+      } catch (Exception e) {                             // something went wrong, display stack trace
+         e.printStackTrace();
+         if (workers != null) { workers.shutdownNow(); }
+      }
+
+      if (indexedHashes != null) {                        // anything not seen in the corpus has been removed from it
+         try {
+            for (String key : indexedHashes.keySet()) {
+               indexWriters[Math.floorMod(key.hashCode(), indexWriters.length)].deleteDocuments(new Term(KEY_FIELD, key));
+            }
+         } catch (IOException e) { e.printStackTrace(); }
+         println(String.format("Synced index: %d written, %d unchanged, %d deleted",
+                               stats.count.get() - stats.unchanged.get(), stats.unchanged.get(), indexedHashes.size()));
+         indexedHashes = null;                            // the sync is done, later ingests only add documents
+      }
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+      println(String.format("Indexed %d entries with %d thread(s) in %.2fs (%.0f entries/sec), %d skipped, peak heap %d MB",
+                            stats.count.get(), Math.max(threads, 1), seconds, stats.count.get() / seconds,
+                            stats.failed.get(), getPeakHeap() >> 20));
+
+      return stats.count.get();
+   }
+
+   /**
+    * handOff will queue an entry for a worker, waiting while its queue is full as long as the worker is running
+    * @param queue  the queue of the worker
+    * @param worker the worker
+    * @param raw    raw text of the entry
+    */
+   private static void handOff(BlockingQueue<String> queue, Future<?> worker, String raw) throws InterruptedException {
+      while (!queue.offer(raw, 100, TimeUnit.MILLISECONDS)) {
+         if (worker.isDone()) { throw new IllegalStateException("An indexing worker has stopped, giving up..."); }
+      }
+   }
+
+   /**
+    * citationKey will find the citation key in the raw text of an entry without parsing it
+    * @param raw raw text of the entry
+    * @return the text between the opening brace and the first comma, the whole text if there is none
+    */
+   private static String citationKey(String raw) {
+
+      int open  = raw.indexOf('{');
+      int comma = (open < 0) ? -1 : raw.indexOf(',', open);
+      return (comma < 0) ? raw : raw.substring(open + 1, comma).trim();
+   }
+
+   /**
+    * indexEntry will parse the raw text of a single entry and add it to the index
+    * @param indexWriters the writers of the shards, the entry goes to the shard of its citation key
+    * @param parser       the parser to use, parsers are not thread safe
+    * @param raw          raw text of the entry
+    * @param stats        counters of the ingest
+    */
+   private static void indexEntry(IndexWriter[] indexWriters, BibTeXParser parser, String raw,
+                                  IngestStats stats) throws IOException {
+      try {
+
+         // parse the single entry, @string and @comment blocks will not produce any entries
+         long start = System.nanoTime();
+         Collection<BibTeXEntry> entries = parser.parse(new StringReader(raw)).getEntries().values();
+         entryLatency.record(System.nanoTime() - start);
+
+         for (BibTeXEntry entry : entries) {
+
+            // citation keys are case-insensitive, an entry replaces any earlier one with its key so the last one
+            // wins, the index resolves duplicates so no key is held in memory however large the corpus is
+            String key = entry.getKey().getValue().toLowerCase();
+
+            start = System.nanoTime();
+            Document item = toDocument(entry);
+            stats.count.incrementAndGet();
+            buildLatency.record(System.nanoTime() - start);
+            start = System.nanoTime();
+
+            // duplicate citation keys meet in the same shard
+            IndexWriter indexWriter = indexWriters[Math.floorMod(key.hashCode(), indexWriters.length)];
+
+            if (indexedHashes != null) {                  // syncing, only rewrite entries whose content has changed
+
+               Long hash = indexedHashes.remove(key);     // whatever is left over afterwards gets deleted
+               if (hash != null && hash == item.getField("hash").numericValue().longValue()) {
+                  stats.unchanged.incrementAndGet(); continue;
+               }
+            }
+            indexWriter.updateDocument(new Term(KEY_FIELD, key), item); // an entry with the same key is replaced
+
+            writeLatency.record(System.nanoTime() - start);
+         }
+      } catch (ParseException | RuntimeException e) {          // resolution and token errors are runtime exceptions
+         stats.failed.incrementAndGet();                  // a bad entry, missing fields for example
+      }
+   }
+
+   /**
+    * commit will commit an index writer and record how long it took
+    * @param indexWriter the writer to commit
+    */
+   private static void commit(IndexWriter indexWriter) throws IOException {
+      long start = System.nanoTime();
+      indexWriter.commit();
+      commitLatency.record(System.nanoTime() - start);
+   }
+
+   /**
+    * getHashes will read the citation key and content hash of every entry in the index, used when syncing the index
+    *    with the corpus. An index that was built without hashes is rebuilt from scratch.
+    * @param indexWriter the writer of the index
+    * @return a map of lowercased citation key -> content hash
+    */
+   private static Map<String, Long> getHashes(IndexWriter indexWriter) throws IOException {
+
+      Map<String, Long> hashes = new ConcurrentHashMap<>();
+
+      try (DirectoryReader reader = DirectoryReader.open(indexWriter)) {
+
+         for (LeafReaderContext leaf : reader.leaves()) {
+
+            SortedDocValues  keys   = leaf.reader().getSortedDocValues(KEY_FIELD);
+            NumericDocValues values = leaf.reader().getNumericDocValues("hash");
+
+            if (keys == null || values == null) {          // older index, there is nothing to compare against
+               println("Index has no citation keys or content hashes, rebuilding it...");
+               indexWriter.deleteAll(); hashes.clear(); break;
+            }
+
+            Bits live = leaf.reader().getLiveDocs();
+            for (int doc = keys.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = keys.nextDoc()) {
+               if ((live == null || live.get(doc)) && values.advanceExact(doc))
+                  hashes.put(keys.binaryValue().utf8ToString(), values.longValue());
+            }
+         }
+      }
+
+      return hashes;
+   }
+
+   /**
+    * IngestStats holds the counters of a single ingest, shared between the indexing workers
+    */
+   private static class IngestStats {
+      final AtomicInteger count      = new AtomicInteger();   // entries read from the corpus
+      final AtomicInteger failed     = new AtomicInteger();   // entries that failed to parse or convert
+      final AtomicInteger unchanged  = new AtomicInteger();   // entries skipped by a sync
+   }
+
+   /**
+    * newParser will create a new BibTex parser object.
+    *   Overriding the methods below to allow for the parser to be able to parse the .bib file
+    *   given for the assignment as it fails to parse due to cross references.
+    * @return the parser
+    */
+   private static BibTeXParser newParser() throws ParseException {
+      return new BibTeXParser(){
+         @Override
+         public void checkStringResolution(Key key, BibTeXString string){}
+         @Override
+         public void checkCrossReferenceResolution(Key key, BibTeXEntry entry){}
+      };
+   }
+
+   /**
+    * toDocument will convert a single bibtex entry into a lucene document
+    * @param entry the entry to convert
+    * @return the document for the entry
+    */
+   private static Document toDocument(BibTeXEntry entry) {
+
+      Document item = new Document();               // document object for each entry
+
+      boolean foundAuth = false, foundEdit = false; // see if an editor or an author was found
+
+      // add the type and the citation key to the document as fields
+      item.add(new TextField("type", entry.getType().getValue(), Field.Store.YES));
+      item.add(new StringField("bibkey", entry.getKey().getValue(), Field.Store.YES));
+      String citeKey = entry.getKey().getValue().toLowerCase();   // identity of the entry, keys are case-insensitive
+      item.add(new StringField(KEY_FIELD, citeKey, Field.Store.NO));
+      item.add(new SortedDocValuesField(KEY_FIELD, new BytesRef(citeKey)));
+
+      // create a map of all the fields for an entry
+      Map<Key, Value> fields = entry.getFields();
+      long hash = hash(FNV_OFFSET, entry.getType().getValue());  // content hash, used to sync the index
+
+      // iterate through each of the fields in the map, to populate a document's fields
+      for (Key key : fields.keySet()) {
+
+         hash = hash(hash(hash, key.getValue()), fields.get(key).toUserString());
+
+         // tokenize and get the term vector positions from the abstract
+         if (key.getValue().equals("abstract")) {
+
+            FieldType field = new FieldType();
+            field.setStored(true);
+            field.setTokenized(true);
+            field.setStoreTermVectors(true);
+            field.setStoreTermVectorPositions(true);
+            field.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+            item.add(new Field(key.getValue(), fields.get(key).toUserString(), field));
+
+         }
+         else if (key.getValue().equals("author")) { // the author field requires more detail
+
+            // get the value of the author field and add each of the authors, an empty field has none
+            String authorString = fields.get(key).toUserString();
+            for (int from = 0, and; from <= authorString.length(); from = and + 3) {
+               and = nextAnd(authorString, from);
+               String auth = authorString.substring(from, and).trim();
+               if (!auth.isEmpty()) { item.add(new TextField(key.getValue(), auth, Field.Store.YES)); foundAuth = true; }
+            }
+         }
+         else {
+             if (key.getValue().equals("editor")) { foundEdit = true; } // see if an editor was found
+             item.add(new TextField(key.getValue(), fields.get(key).toUserString(), Field.Store.YES));
+         }
+      }
+
+      String value;      // initialize the string value
+      if (foundAuth) {   // author has been found, use it to gen a key
+
+         value = genKey( item.getField("author").stringValue(),  // first author's name
+                         item.getField("title").stringValue(),   // title of the document
+                         item.getField("year").stringValue()     // year of publication/release
+                       );
+
+         item.add(new TextField("key", value, Field.Store.YES)); // add key to document
+
+      } else if (foundEdit) { // no author found, but editor was, use it to gen key
+
+         value = genKey( item.getField("editor").stringValue(),  // first editor's name
+                         item.getField("title").stringValue(),   // title of the document
+                         item.getField("year").stringValue()     // year of publication/release
+                       );
+
+         item.add(new TextField("key", value, Field.Store.YES)); // add key to document
+      }
+
+      // the year as a number, for range queries on the bkd tree, sorting and facets
+      Integer year = (item.get("year") != null) ? parseYear(item.get("year")) : null;
+      if (year != null) {
+         item.add(new IntPoint("year", year));
+         item.add(new NumericDocValuesField("year", year));
+      }
+
+      // facet values, counted from the doc values in the same pass that collects the top documents
+      item.add(new SortedSetDocValuesField("type", new BytesRef(entry.getType().getValue().toLowerCase())));
+      for (String dim : new String[]{ "author", "journal" }) {
+         for (String facet : item.getValues(dim)) {
+            if (!facet.trim().isEmpty()) { item.add(new SortedSetDocValuesField(dim, new BytesRef(facet.trim()))); }
+         }
+      }
+
+      // edge n-grams for prefix queries, and the titles and authors offered by suggest queries
+      if (ngrams) {
+         for (String field : PREFIX_FIELDS) {
+            for (String text : item.getValues(field)) { item.add(new TextField(field + PREFIX_SUFFIX, text, Field.Store.NO)); }
+         }
+         for (String field : new String[]{ "title", "author" }) {
+            for (String text : item.getValues(field)) {
+               String suggestion = text.trim().replaceAll("\\s+", " ");   // titles can span lines
+               if (!suggestion.isEmpty()) { item.add(new SortedSetDocValuesField(SUGGEST_FIELD, new BytesRef(suggestion))); }
+            }
+         }
+         hash = hash(hash, SUGGEST_FIELD);                     // a sync with -ngram rewrites entries indexed without it
+      }
+
+      // stable id of the entry, the generated key or the citation key when there is no author or editor
+      String id = (item.get("key") != null) ? item.get("key") : entry.getKey().getValue();
+      item.add(new StringField("id", id, Field.Store.YES));
+      item.add(new SortedDocValuesField("id", new BytesRef(id)));
+      item.add(new NumericDocValuesField("hash", hash));
+
+      return item;
+   }
+
+   /**
+    * hash will mix a string into a 64-bit FNV-1a hash
+    * @param hash  the current hash value
+    * @param value the string to add to the hash
+    * @return the new hash value
+    */
+   private static long hash(long hash, String value) {
+      for (int i = 0; i < value.length(); i++) { hash = (hash ^ value.charAt(i)) * FNV_PRIME; }
+      return (hash ^ 0xff) * FNV_PRIME;               // separator, so "ab"+"c" differs from "a"+"bc"
+   }
+
+   /**
+    * EntrySource will hand out the raw text of one .bib entry at a time
+    */
+   private interface EntrySource extends Closeable {
+
+      /**
+       * next will read everything up to the end of the next entry
+       * @return the raw text of the entry, null once the corpus is exhausted
+       */
+      String next() throws IOException;
+   }
+
+   /**
+    * openEntries will open the entries of a .bib file with the requested front end
+    * @param file the .bib file
+    * @param scan true to scan the mapped file, false to read it through jbibtex's CharacterFilterReader
+    * @return the entries of the file
+    */
+   private static EntrySource openEntries(String file, boolean scan) throws IOException {
+      return scan ? new BibScanner(Paths.get(file))
+                  : new BibEntryReader(new CharacterFilterReader(new BufferedReader(new FileReader(file))));
+   }
+
+   /**
+    * BibEntryReader will split a .bib stream into the raw text of one entry at a time, so the parser
+    *    never has to hold more than a single entry in memory.
+    */
+   private static class BibEntryReader implements EntrySource {
+
+      private final Reader reader;                                    // filtered contents of the corpus
+      private final StringBuilder entry = new StringBuilder(4096);    // reused holder for the current entry
+
+      BibEntryReader(Reader reader) { this.reader = reader; }
+
+      @Override
+      public String next() throws IOException {
+
+         int c;
+         while ((c = reader.read()) != -1 && c != '@') { }           // skip anything between entries
+         if (c == -1) { return null; }                                // nothing left to read
+
+         entry.setLength(0);
+         entry.append('@');
+
+         int depth = 0, open = 0, close = 0;                          // entries are either @type{...} or @type(...)
+         while ((c = reader.read()) != -1) {
+
+            entry.append((char) c);
+
+            if (open == 0) {                                          // still reading the entry type
+               if (c == '{' || c == '(') { open = c; close = (c == '{') ? '}' : ')'; depth = 1; }
+            }
+            else if (c == open) { depth++; }
+            else if (c == close && --depth == 0) { break; }          // found the end of the entry
+         }
+
+         return entry.toString();
+      }
+
+      @Override
+      public void close() throws IOException { reader.close(); }
+   }
+
+   /**
+    * BibScanner will split a .bib file into the raw text of one entry at a time, same as a BibEntryReader over
+    *    a CharacterFilterReader, in a single pass. The file is memory mapped a window at a time and decoded into
+    *    a large char buffer, which is scanned in place: characters the filter would drop end a run, and each
+    *    run is copied into the entry at once.
+    */
+   private static class BibScanner implements EntrySource {
+
+      private static final long WINDOW = 256L << 20;                  // bytes mapped at a time
+      private static final int  CHUNK  = 1 << 16;                     // chars decoded at a time
+
+      private final FileChannel channel;
+      private final long size;                                        // length of the file in bytes
+      private final CharsetDecoder decoder;                           // same charset as a FileReader
+      private final CharBuffer chars;                                 // decoded chunk, scanned in place
+      private final StringBuilder entry = new StringBuilder(4096);    // reused holder for the current entry
+      private ByteBuffer bytes = ByteBuffer.allocate(0);             // the mapped window
+      private long mapped;                                            // end of the mapped window in the file
+      private boolean decoded;                                        // the whole file has been decoded
+
+      BibScanner(Path file) throws IOException {
+         channel = FileChannel.open(file, StandardOpenOption.READ);
+         size    = channel.size();
+         chars   = CharBuffer.allocate((int)Math.min(CHUNK, size + 1));
+         decoder = Charset.defaultCharset().newDecoder()
+                          .onMalformedInput(CodingErrorAction.REPLACE)
+                          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+         chars.flip();                                                // nothing decoded yet
+      }
+
+      @Override
+      public String next() throws IOException {
+
+         entry.setLength(0);
+         boolean found = false;                                       // the '@' of the entry was seen
+         int depth = 0, open = 0, close = 0;                          // entries are either @type{...} or @type(...)
+
+         while (chars.hasRemaining() || fill()) {
+
+            char[] text = chars.array();
+            int i = chars.position(), end = chars.limit();
+
+            if (!found) {                                             // skip anything between entries
+               while (i < end && text[i] != '@') { i++; }
+               chars.position(i);
+               if (i == end) { continue; }
+               found = true;
+            }
+
+            int run = i;                                              // start of the characters not copied yet
+            for (; i < end; i++) {
+
+               char c = text[i];
+               if (!accepted(c)) { entry.append(text, run, i - run); run = i + 1; continue; }
+
+               if (open == 0) {                                       // still reading the entry type
+                  if (c == '{' || c == '(') { open = c; close = (c == '{') ? '}' : ')'; depth = 1; }
+               }
+               else if (c == open) { depth++; }
+               else if (c == close && --depth == 0) {                 // found the end of the entry
+                  entry.append(text, run, i + 1 - run);
+                  chars.position(i + 1);
+                  return entry.toString();
+               }
+            }
+            entry.append(text, run, end - run);
+            chars.position(end);
+         }
+
+         return found ? entry.toString() : null;                      // the corpus ended inside an entry
+      }
+
+      /**
+       * fill will decode the next chunk of the file, mapping the next window once the current one is used up
+       * @return false once the whole file has been decoded
+       */
+      private boolean fill() throws IOException {
+
+         chars.clear();
+         while (chars.position() == 0 && !decoded) {
+
+            if (bytes.remaining() < 4 && mapped < size) {             // the rest of the window may be a split character
+               long from = mapped - bytes.remaining();
+               bytes = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(WINDOW, size - from));
+               mapped = from + bytes.limit();
+            }
+
+            boolean last = (mapped == size);
+            decoder.decode(bytes, chars, last);
+            if (last && !bytes.hasRemaining()) { decoder.flush(chars); decoded = true; }
+         }
+         chars.flip();
+         return chars.hasRemaining();
+      }
+
+      /**
+       * accepted will check for the characters kept by jbibtex's CharacterFilterReader
+       * @param c the character
+       * @return true if the character is kept
+       */
+      private static boolean accepted(char c) {
+         if (c < 256) { return ACCEPTED[c]; }
+         return c <= 8191 || c == 8364 || c == 8482;                  // the euro and trade mark signs
+      }
+
+      private static final boolean[] ACCEPTED = new boolean[256];     // tab, line breaks, printable ascii and latin-1
+      static {
+         for (int c = 0; c < 256; c++) {
+            ACCEPTED[c] = c == 9 || c == 10 || c == 12 || c == 13 || (c >= 32 && c <= 127) ||
+                          (c >= 192 && c <= 255 && c != 215 && c != 247);
+         }
+      }
+
+      @Override
+      public void close() throws IOException { channel.close(); }
+   }
+
+   /**
+    * resetPeakHeap and getPeakHeap will track the peak heap usage of the jvm, used to report the memory
+    *    needed by an ingest
+    */
+   private static void resetPeakHeap() {
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+         if (pool.getType() == MemoryType.HEAP) { pool.resetPeakUsage(); }
+   }
+
+   private static long getPeakHeap() {
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+         if (pool.getType() == MemoryType.HEAP) { peak += pool.getPeakUsage().getUsed(); }
+      return peak;
+   }
+
+   /**
+    * nextAnd will find the 'and' separating two names of an author list, bibtex only splits on a whole word
+    *    'and' outside of braces, so 'Alexander' and '{Barnes and Noble}' are single names
+    * @param authors the author list
+    * @param from    where the current name starts
+    * @return index of the next separating 'and', the length of the list if the current name is the last
+    */
+   private static int nextAnd(String authors, int from) {
+
+      int depth = 0;                                                  // braces around the current character
+      for (int i = from; i < authors.length(); i++) {
+
+         char c = authors.charAt(i);
+         if (c == '{') { depth++; }
+         else if (c == '}') { depth--; }
+         else if (c == 'a' && depth == 0 && i > from && Character.isWhitespace(authors.charAt(i - 1)) &&
+                  authors.startsWith("and", i) && i + 3 < authors.length() && Character.isWhitespace(authors.charAt(i + 3))) {
+            return i;
+         }
+      }
+      return authors.length();
+   }
+
+   /**
+    * genKey will (re)generate a key for a bibtex document. The key is built in a single pass into a buffer
+    *    sized for it, same as splitting and joining the parts would.
+    * @param author author of the document, sometimes is an editor
+    * @param title  title of the document
+    * @param year   release year of the document
+    * @return a key value in the format <AUTH/EDITOR>-<YEAR>-<TITLE>
+    */
+   private static String genKey(String author, String title, String year) {
+
+      int last = author.indexOf(',');                          // last name of the author, before a ',' or a ' '
+      if (last < 0) { last = author.indexOf(' '); }
+      if (last < 0) { last = author.length(); }
+
+      int end = title.indexOf(':');                            // if a title has a ':' use everything before that
+      if (end < 0) { end = title.length(); }
+      while (end > 0 && title.charAt(end - 1) == ' ') { end--; } // trailing spaces are dropped, not turned into '-'
+
+      StringBuilder key = new StringBuilder(last + year.length() + end + 2);
+      key.append(author, 0, last).append('-').append(year).append('-');
+      for (int i = 0; i < end; i++) {                          // words of the title separated by '-'
+         char c = title.charAt(i);
+         key.append(c == ' ' ? '-' : c);
+      }
+
+      return key.toString();                                   // format: authorLastName-Year-Title
+   }
+
+   /**
+    * getInput() will continually get input from the user and process queries
+    */
+   private static void getInput() {
+
+      Scanner kyb  = new Scanner(System.in);                   // scanner object...
+      Session session = new Session();                         // page size and cursor of the prompt
+      String input;                                            // input holder
+
+      getHelp();                                               // display helpful information
+      while(true) {                                            // continually get user input until !quit command
+
+         System.out.print("Query: ");
+         if (!kyb.hasNextLine()) { break; }                    // input was closed, same as !quit
+         input = kyb.nextLine().trim();                        // get the query information
+         if (input.isEmpty()) { continue; }                    // nothing to do
+
+         if (input.charAt(0) == '!')                           // check for command given
+            if (commands(input, session)) { continue; } else { break; } // false if quit requested, otherwise continue
+
+         processQuery(input.split(" "), session, console);     // split the input and process it
+      }
+   }
+
+   /**
+    * processQuery will do some small steps in the overall query process. Afterwards it will call the main query method
+    * @param input   an array of the split input by spaces
+    * @param session the page size and cursor of the user, the cursor moves to the first page of this query
+    * @param out     where the results are written
+    */
+   private static void processQuery(String[] input, Session session, PrintWriter out) {
+
+      String type = input[0].toLowerCase();                                        // get the type of query
+      if (type.equals("suggest")) {                                                // completions, not documents
+         suggest(String.join(" ", Arrays.copyOfRange(input, 1, input.length)), session.size, out);
+         return;
+      }
+
+      session.type  = type;
+      session.input = (input.length > 1) ? Arrays.copyOfRange(input, 1, input.length) : null; // matchall doesnt require info
+      session.after = null;                                                        // start from the first page
+      session.page  = 0;
+      session.order = sortBy;                                                      // !sort applies to the next query
+      query(session, out);                                                         // send the processed information
+   }
+
+   /**
+    * query is a helper function of processQuery and !next, it will display the next page of the query of a session
+    * @param session the query, page size and cursor, the cursor moves past the displayed page
+    * @param out     where the results are written
+    */
+   private static void query(Session session, PrintWriter out) {
+
+      try {
+
+         IndexSearcher indexSearcher = searcherManager.acquire();      // latest searcher, may change between pages
+         Results results;
+
+         try {
+            results = search(indexSearcher, session.type, session.input, session.order, session.size, session.after, hitLimit);
+
+            if (results == null) { out.println("Something went wrong during parsing..."); } // there was an issue parsing the general queries...
+            else if (session.page > 0 && results.topDocs.scoreDocs.length == 0) { out.println("No more results...\n"); }
+            else {                                                     // display the results of the query
+               ScoreDoc[] scores = results.topDocs.scoreDocs;
+               if (scores.length > 0) { session.after = (FieldDoc)scores[scores.length - 1]; } // continue after the last hit
+               session.page++;
+
+               long start = System.nanoTime();
+               printScores(indexSearcher, results, session.type, session.page, out); // the hits are loaded from the same searcher
+               renderLatency.record(System.nanoTime() - start);
+            }
+         }
+         finally { searcherManager.release(indexSearcher); }          // the searcher must be released, even on errors
+
+      } catch (Exception e) { e.printStackTrace(); out.println("Query failed: " + e); } // general try/catch for errors
+   }
+
+   /**
+    * Session holds the page size and the paging cursor of a single user of the prompt or the server
+    */
+   private static class Session {
+
+      int size = pageSize;                                          // documents per page
+      String type;                                                  // type of the last query, null before any query
+      String[] input;                                               // information of the last query, null for matchall
+      String order;                                                 // order of the last query, fixed when it starts
+      FieldDoc after;                                               // last hit displayed, null before the first page
+      int page;                                                     // pages displayed of the last query
+
+      /**
+       * command will process the commands that only change the session, shared by the prompt and the server
+       * @param input the command
+       * @param out   where the results are written
+       * @return true if the command was a session command
+       */
+      boolean command(String input, PrintWriter out) {
+
+         String cmd = input.split(" ")[0].toLowerCase();
+
+         switch (cmd) {
+
+            case ("!next"):                                         // display the page after the last one
+               if (type == null) { out.println("No query to continue...\n"); }
+               else { query(this, out); }
+               return true;
+            case ("!size"):                                         // change the number of documents per page
+               try {
+                  int n = Integer.parseInt(input.substring(cmd.length()).trim());
+                  if (n < 1) { throw new NumberFormatException(); }
+                  size = n;
+               } catch (NumberFormatException e) { out.println("The page size must be a positive number"); }
+               out.println("Showing " + size + " results per page...\n");
+               return true;
+            default: return false;
+         }
+      }
+   }
+
+   /**
+    * search is a helper method for query and the batch mode, it will find the top documents of a query,
+    *    using the result cache when it can. The time spent parsing, rewriting and searching is recorded
+    *    separately, fuzzy expansions show up in the rewrite, wildcard, regex and prefix ones in the search.
+    * @param indexSearcher the searcher to use, the caller acquires and releases it
+    * @param type          the type of query
+    * @param input         the query information split by spaces, null for matchall
+    * @return the top documents and facet counts, null if the query failed to parse
+    */
+   private static Results search(IndexSearcher indexSearcher, String type, String[] input) throws IOException {
+      return search(indexSearcher, type, input, sortBy, pageSize, null, hitLimit);
+   }
+
+   /**
+    * search will find a page of the top documents of a query. Only the first page is cached and has its facets
+    *    counted, later pages continue after the last hit of the previous one, so every page costs the same
+    *    memory no matter how deep it is.
+    * @param indexSearcher the searcher to use, the caller acquires and releases it
+    * @param type          the type of query
+    * @param input         the query information split by spaces, null for matchall
+    * @param order         the order of the results, the same for every page of a query
+    * @param size          the number of documents in the page
+    * @param after         the last hit of the previous page, null for the first page
+    * @param limit         hits collected before the search stops, 0 collects them all
+    * @return the page of documents and facet counts, null if the query failed to parse
+    */
+   private static Results search(IndexSearcher indexSearcher, String type, String[] input, String order, int size,
+                                 FieldDoc after, int limit) throws IOException {
+
+      long start = System.nanoTime();
+      long refresh = refreshes.get();                                  // a refresh may start or run during the query
+      input = compact(input);                                          // the cache key and the parse see the same input
+      boolean facets = showFacets && after == null;                    // the counts do not change from page to page
+      boolean cache  = resultCache != null && after == null;           // deep pages are rarely asked for twice
+
+      // cached results are only valid for the reader they were found with
+      List<Object> key = cache ? Arrays.asList(readerKey(indexSearcher.getIndexReader()),
+                                               normalize(type, input), order, facets, size, limit) : null;
+      Results results = cache ? resultCache.get(key) : null;
+      long parsed = start, rewritten = start, searched = start;
+
+      if (results == null) {                                           // not cached, run the query
+
+         Query query = buildQuery(type, input);                        // generate the query object
+         if (query == null) { queryFailures.increment(); return null; } // general queries can be null (failure to parse)
+         parsed = System.nanoTime();
+
+         query = indexSearcher.rewrite(query);                         // fuzzy expands here, multi-term queries per segment later
+         rewritten = System.nanoTime();
+
+         // get a page of documents and the facet counts in a single pass
+         results = indexSearcher.search(query, new ResultsManager(size, getSort(order), after, facets, limit));
+         searched = System.nanoTime();
+
+         if (cache) { resultCache.put(key, results); }
+         parseLatency.record(parsed - start);
+         rewriteLatency.record(rewritten - parsed);
+         searchLatency.record(searched - rewritten);
+      }
+
+      long total = System.nanoTime() - start;
+      queryLatency.record(total);
+      if ((refresh & 1) != 0 || refresh != refreshes.get()) { refreshQueryLatency.record(total); } // overlapped a refresh
+      queryHits.add(results.topDocs.totalHits);
+
+      if (trace) {
+         println(String.format("Timing:: parse=%.3fms rewrite=%.3fms search=%.3fms total=%.3fms hits=%d%s",
+                               (parsed - start) / 1e6, (rewritten - parsed) / 1e6, (searched - rewritten) / 1e6,
+                               total / 1e6, results.topDocs.totalHits, (searched == start) ? " (cached)" : ""));
+      }
+      return results;
+   }
+
+   /**
+    * getSort will find the sort for an order of the results. Every order ends with the citation key, so
+    *    equal hits keep the same order from one page to the next.
+    * @param order relevance, year (oldest first) or -year (newest first)
+    * @return the sort, null if the order is invalid
+    */
+   private static Sort getSort(String order) {
+
+      SortField key = new SortField(KEY_FIELD, SortField.Type.STRING); // stable tiebreak, citation keys are unique
+
+      switch (order) {
+
+         case ("relevance"): return new Sort(SortField.FIELD_SCORE, key);
+         case ("year"):  return new Sort(new SortField("year", SortField.Type.INT), SortField.FIELD_SCORE, key);
+         case ("-year"): return new Sort(new SortField("year", SortField.Type.INT, true), SortField.FIELD_SCORE, key);
+         default:        return null;
+      }
+   }
+
+   /**
+    * Results holds the top documents of a query along with the hit counts of each facet value
+    */
+   private static class Results {
+
+      final TopDocs topDocs;                                        // top documents of the query
+      final Map<String, Map<String, Integer>> facets;               // dimension -> value -> hits, null if not counted
+      final boolean partial;                                        // the facets stopped counting at -hits
+
+      Results(TopDocs topDocs, Map<String, Map<String, Integer>> facets) { this(topDocs, facets, false); }
+
+      Results(TopDocs topDocs, Map<String, Map<String, Integer>> facets, boolean partial) {
+         this.topDocs = topDocs;
+         this.facets  = facets;
+         this.partial = partial;
+      }
+   }
+
+   /**
+    * ResultsManager will collect a page of the top documents and the facet counts of a query in a single pass.
+    *    When the searcher has an executor every slice of the index gets its own collector, and the results of
+    *    the slices are merged at the end.
+    */
+   private static class ResultsManager implements CollectorManager<ResultsCollector, Results> {
+
+      private final int  size;                                      // number of top documents
+      private final Sort sort;                                      // order of the documents, ends with a tiebreak
+      private final FieldDoc after;                                 // last hit of the previous page, null for the first
+      private final boolean facets;                                 // count the facet values
+      private final int limit;                                      // hits counted in the facets, 0 for all
+
+      ResultsManager(int size, Sort sort, FieldDoc after, boolean facets, int limit) {
+         this.size = size; this.sort = sort; this.after = after; this.facets = facets; this.limit = limit;
+      }
+
+      @Override
+      public ResultsCollector newCollector() throws IOException {
+         // hits are only counted exactly for the first page, lucene skips the count where the index order allows it
+         TopDocsCollector<?> top = TopFieldCollector.create(sort, size, after, true, true, false, after == null);
+         return new ResultsCollector(top, facets ? new FacetCollector() : null, limit);
+      }
+
+      @Override
+      public Results reduce(Collection<ResultsCollector> collectors) throws IOException {
+
+         TopDocs[] tops = new TopDocs[collectors.size()];
+         Map<String, Map<String, Integer>> counts = facets ? new TreeMap<>() : null;
+
+         int i = 0;
+         boolean partial = false;
+         for (ResultsCollector collector : collectors) {
+            tops[i++] = collector.top.topDocs();
+            if (counts != null) { collector.facets.addTo(counts); }
+            partial |= collector.partial;
+         }
+
+         if (counts != null) { counts = topFacets(counts); }       // only the top values are displayed
+
+         if (tops.length == 1) { return new Results(tops[0], counts, partial); } // nothing to merge
+         TopDocs merged = TopDocs.merge(sort, size, Arrays.copyOf(tops, tops.length, TopFieldDocs[].class));
+         return new Results(merged, counts, partial);
+      }
+   }
+
+   /**
+    * ResultsCollector will hand every hit to both the top documents collector and the facet collector. With a
+    *    limit the facets of each segment stop after its share of the limit, in proportion to its size, so the
+    *    counts are the same whichever thread searches it. The top documents always see every hit, stopping
+    *    a segment early would page through the best of an arbitrary subset of the matches.
+    */
+   private static class ResultsCollector implements Collector {
+
+      final TopDocsCollector<?> top;
+      final FacetCollector facets;                                  // null if facets are not counted
+      private final Collector both;
+      private final int limit;                                      // hits counted in the facets, 0 for all
+      boolean partial;                                              // the facets of a segment stopped early
+
+      ResultsCollector(TopDocsCollector<?> top, FacetCollector facets, int limit) {
+         this.top    = top;
+         this.facets = facets;
+         this.both   = (facets == null) ? top : MultiCollector.wrap(top, facets);
+         this.limit  = limit;
+      }
+
+      @Override
+      public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+
+         if (limit == 0 || facets == null) { return both.getLeafCollector(context); }
+
+         long docs = ReaderUtil.getTopLevelContext(context).reader().maxDoc();
+         int share = (int)Math.max(1, limit * (long)context.reader().maxDoc() / Math.max(docs, 1));
+         LeafCollector counts = facets.getLeafCollector(context);
+         return new FilterLeafCollector(top.getLeafCollector(context)) {
+
+            private int hits;
+
+            @Override
+            public void collect(int doc) throws IOException {
+               super.collect(doc);
+               if (++hits <= share) { counts.collect(doc); }         // facets need no scores
+               else { partial = true; }
+            }
+         };
+      }
+
+      @Override
+      public boolean needsScores() { return both.needsScores(); }
+   }
+
+   /**
+    * FacetCollector will count the hits of a query per type, author and journal, read from the sorted set doc
+    *    values of each, and per year, read from the numeric doc values of the year. Values are counted by
+    *    ordinal or year within a segment and only turned into strings when the segment is done.
+    */
+   private static class FacetCollector extends SimpleCollector {
+
+      private final Map<String, Map<String, Integer>> counts = new TreeMap<>(); // dimension -> value -> hits
+      private final SortedSetDocValues[] values = new SortedSetDocValues[FACET_DIMS.length]; // current segment
+      private final int[][] ordCounts = new int[FACET_DIMS.length][];          // hits per ordinal of the segment
+      private NumericDocValues year;                                           // years of the current segment
+      private final int[] yearCounts = new int[YEAR_SPAN];                     // hits per year of the segment
+
+      FacetCollector() { counts.put("year", new TreeMap<>()); }
+
+      @Override
+      protected void doSetNextReader(LeafReaderContext context) throws IOException {
+
+         flush();                                                   // done with the previous segment
+         for (int i = 0; i < FACET_DIMS.length; i++) {
+            values[i] = context.reader().getSortedSetDocValues(FACET_DIMS[i]);
+            ordCounts[i] = (values[i] != null) ? new int[(int)values[i].getValueCount()] : null;
+         }
+         year = context.reader().getNumericDocValues("year");
+      }
+
+      @Override
+      public void collect(int doc) throws IOException {
+
+         for (int i = 0; i < FACET_DIMS.length; i++) {
+            if (values[i] != null && values[i].advanceExact(doc)) {
+               for (long ord = values[i].nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values[i].nextOrd())
+                  ordCounts[i][(int)ord]++;
+            }
+         }
+         if (year != null && year.advanceExact(doc)) {
+            long value = year.longValue();
+            if (value >= 0 && value < YEAR_SPAN) { yearCounts[(int)value]++; }
+            else { counts.get("year").merge(Long.toString(value), 1, Integer::sum); } // a typo, rare enough
+         }
+      }
+
+      @Override
+      public boolean needsScores() { return false; }
+
+      /**
+       * flush will turn the ordinal and year counts of the current segment into value counts
+       */
+      private void flush() throws IOException {
+
+         for (int i = 0; i < FACET_DIMS.length; i++) {
+            if (ordCounts[i] == null) { continue; }
+
+            Map<String, Integer> dim = counts.computeIfAbsent(FACET_DIMS[i], k -> new TreeMap<>());
+            for (int ord = 0; ord < ordCounts[i].length; ord++) {
+               if (ordCounts[i][ord] > 0) { dim.merge(values[i].lookupOrd(ord).utf8ToString(), ordCounts[i][ord], Integer::sum); }
+            }
+            ordCounts[i] = null;
+         }
+         if (year == null) { return; }                              // no years in the segment, nothing counted
+
+         Map<String, Integer> years = counts.get("year");
+         for (int value = 0; value < YEAR_SPAN; value++) {
+            if (yearCounts[value] > 0) { years.merge(Integer.toString(value), yearCounts[value], Integer::sum); yearCounts[value] = 0; }
+         }
+         year = null;
+      }
+
+      /**
+       * addTo will add the counts of this collector to the counts of a query
+       * @param total dimension -> value -> hits
+       */
+      void addTo(Map<String, Map<String, Integer>> total) throws IOException {
+
+         flush();                                                   // the last segment has not been flushed yet
+         for (Map.Entry<String, Map<String, Integer>> dim : counts.entrySet()) {
+            Map<String, Integer> into = total.computeIfAbsent(dim.getKey(), k -> new TreeMap<>());
+            dim.getValue().forEach((value, hits) -> into.merge(value, hits, Integer::sum));
+         }
+      }
+   }
+
+   /**
+    * topFacets will keep only the values with the most hits in each dimension
+    * @param counts dimension -> value -> hits
+    * @return dimension -> top values -> hits, in order of hits
+    */
+   private static Map<String, Map<String, Integer>> topFacets(Map<String, Map<String, Integer>> counts) {
+
+      Map<String, Map<String, Integer>> top = new TreeMap<>();
+      for (Map.Entry<String, Map<String, Integer>> dim : counts.entrySet()) {
+
+         Map<String, Integer> values = new LinkedHashMap<>();
+         dim.getValue().entrySet().stream()
+            .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+            .limit(FACET_SIZE)
+            .forEach(entry -> values.put(entry.getKey(), entry.getValue()));
+         top.put(dim.getKey(), values);
+      }
+      return top;
+   }
+
+
+   /**
+    * compact will drop the empty items left by repeated spaces from the query information
+    * @param input the query information split by spaces, null for matchall
+    * @return the items that are not empty, null if there are none
+    */
+   private static String[] compact(String[] input) {
+
+      if (input == null) { return null; }
+      int items = 0;
+      for (String item : input) { if (!item.isEmpty()) { items++; } }
+      if (items == input.length) { return input; }                  // nothing to drop, the usual case
+      if (items == 0) { return null; }
+
+      String[] compacted = new String[items];
+      items = 0;
+      for (String item : input) { if (!item.isEmpty()) { compacted[items++] = item; } }
+      return compacted;
+   }
+
+   /**
+    * normalize will turn compacted query information into the form used as a cache key. The query is
+    *    lowercased the same way parsing lowercases it, the field is kept as it is.
+    * @param type  the type of query
+    * @param input the query information without empty items, null for matchall
+    * @return the type, field and query separated by single spaces
+    */
+   private static String normalize(String type, String[] input) {
+
+      StringBuilder key = new StringBuilder(type);
+      if (input != null) {
+         key.append(' ').append(input[0]);
+         for (int i = 1; i < input.length; i++) { key.append(' ').append(input[i].toLowerCase()); }
+      }
+      return key.toString();
+   }
+
+   /**
+    * buildQuery is a helper method to query, it will find the query object of the query information. Query
+    *    objects are immutable and the wildcard and regex automata are compiled when they are constructed,
+    *    so a parsed query is cached by its normalized text and shared by every thread and reader. Prefix queries
+    *    are also keyed by whether the index has edge n-grams, since that changes with refreshes.
+    * @param type  the type of query
+    * @param input the query information split by spaces, null for matchall
+    * @return the query object, null if it failed to parse
+    */
+   private static Query buildQuery(String type, String[] input) {
+
+      input = compact(input);                                      // the key and the parse see the same input
+      if (parsedCache == null) { return parseQuery(type, input); }
+
+      boolean grams = prefixFields;                                // a refresh can change how prefixes are parsed
+      String key = normalize(type, input);                         // type, field and query, as lowercased by parsing
+      if (grams && type.equals("prefix")) { key += " " + PREFIX_SUFFIX; }
+      Query query = parsedCache.get(key);
+      if (query == null) {
+         query = parseQuery(type, input);
+         if (query != null && grams == prefixFields) { parsedCache.put(key, query); } // failures are reported again next time
+      }
+      else if (trace) { println("Query:: " + query + " (cached)"); }
+      return query;
+   }
+
+   /**
+    * parseQuery is a helper method to buildQuery, it will split the query information into a field and
+    *    the actual query and generate the query object
+    * @param type  the type of query
+    * @param input the query information split by spaces, null for matchall
+    * @return the query object, null if it failed to parse
+    */
+   private static Query parseQuery(String type, String[] input) {
+
+      String field = null, qString = null;
+
+      if (input != null && !type.equals("matchall")) { // general error check
+
+         field = input[0];
+         qString = String.join(" ", Arrays.copyOfRange(input, 1, input.length));
+         if (trace) println("Type:: " + type + "\nQuery::" + qString + "\nField::" + field );
+      }
+
+      if (trace && type.equals("matchall")) println("Query::" + type); // display some information
+
+      if (type.equals("disjunction") || type.equals("termrange")) { // these two queries require more work
+
+         return specialGenQuery(type, field, qString);              // use specialGenQuery to get generate our query
+      } else { return genQuery(type, field, qString); }             // generate the query object
+   }
+
+   /**
+    * specialGenQuery is a helper method to query, it will perform the actions required for
+    *    the term-range and disjunction queries.
+    * @param type  the type of query
+    * @param field the field to perform a query on
+    * @param input the actual query
+    * @return the specified query object
+    */
+   private static Query specialGenQuery(String type, String field, String input) {
+
+      String[] items; // holder for the input, different queries have different needs
+      if (input == null) { return null; }  // both queries need a field and a query
+      input = input.toLowerCase();
+
+      switch(type) {
+
+         case ("termrange"):
+            items = input.split(",");
+            if (field.equals("year") && parseYear(items[0]) != null && parseYear(items[1]) != null) {
+               return IntPoint.newRangeQuery("year", parseYear(items[0]), parseYear(items[1])); // uses the bkd tree
+            }
+            return new TermRangeQuery(field, new BytesRef(items[0]), new BytesRef(items[1]), true, true);
+
+         case ("disjunction"):
+            ArrayList<Query> queryCollection = new ArrayList<>();                         // create a collection of queries
+            input = input.trim();                                                         // remove trailing/leading spaces.
+            field = field.replace(";", "");                             // separate the fields
+            String[] fields = input.substring(0, input.indexOf(";")).split(" ");    // get all of the fields
+            String phrase   = "(" + input.substring(input.indexOf(";") + 1).trim() + ")";  // make a phrase for the parser
+
+            try {
+
+               for(String item: fields)                                                    // query each field against the phrase
+                  queryCollection.add(new QueryParser(item, analyzer).parse(phrase));      // add each query to the collection
+
+               return new DisjunctionMaxQuery(queryCollection, Float.parseFloat(field));   // return a new disjunction query
+
+            } catch (Exception e) { e.getStackTrace(); }
+      }
+      return null; // something happened when querying, return null
+   }
+
+   /**
+    * genQuery is a helper method for query, it will return the appropriate structure for a query based
+    *    on the type type of query requested
+    * @param type  type of query
+    * @param field field of the query
+    * @param input the actual query
+    * @return query object
+    */
+   private static Query genQuery(String type, String field, String input) {
+
+      input = (input != null) ? input.toLowerCase() : null;         // matchall has no query
+
+      switch(type) {
+
+         case("term"):        return new TermQuery(new Term(field, input));
+         case("wildcard"):    return field.equals("year") && input.matches("\\d{1,3}\\*")  // years like 201*
+                                     ? yearPrefixQuery(input) : new WildcardQuery(new Term(field, input));
+         case("prefix"):      return prefixQuery(field, input);
+         case("fuzzy"):       return new FuzzyQuery(new Term(field, input));
+         case("regex"):       return new RegexpQuery(new Term(field, input));
+         case("matchall"):    return new MatchAllDocsQuery();
+         case("phrase"):      return genQuery(field, input);
+         case("multiphrase"): return genQuery(field, input);
+         case("boolean"):     return genQuery(field, input);
+         default:             printerr("Invalid query type given..."); return null;
+      }
+   }
+
+   /**
+    * prefixQuery will look a prefix up in the edge n-grams of a field when the index has them, so the cost does
+    *    not grow with the number of terms that share the prefix. Every hit scores 1, the same as a PrefixQuery.
+    * @param field the field of the query
+    * @param input the prefix
+    * @return the query
+    */
+   private static Query prefixQuery(String field, String input) {
+
+      if (prefixFields && PREFIX_FIELDS.contains(field) && input.length() <= MAX_GRAM) {
+         return new ConstantScoreQuery(new TermQuery(new Term(field + PREFIX_SUFFIX, input)));
+      }
+      return new PrefixQuery(new Term(field, input));                // terms are expanded per segment while searching
+   }
+
+   /**
+    * yearPrefixQuery will turn a wildcard over years such as 201* into a range query over the year points
+    * @param input the wildcard, one to three digits followed by a *
+    * @return the range query, 201* becomes 2010 to 2019
+    */
+   private static Query yearPrefixQuery(String input) {
+
+      int digits = input.length() - 1, width = 1;
+      for (int i = digits; i < 4; i++) { width *= 10; }                // years covered by the wildcard
+
+      int low = Integer.parseInt(input.substring(0, digits)) * width;
+      return IntPoint.newRangeQuery("year", low, low + width - 1);
+   }
+
+   /**
+    * parseYear will find the first four digit number in a string
+    * @param value the string, such as 2015 or {2015}
+    * @return the year, null if there is no four digit number
+    */
+   private static Integer parseYear(String value) {
+
+      int run = 0;                                                     // length of the current run of digits
+      for (int i = 0; i <= value.length(); i++) {
+         if (i < value.length() && Character.isDigit(value.charAt(i))) { run++; continue; }
+         if (run == 4) { return Integer.parseInt(value.substring(i - 4, i)); }
+         run = 0;
+      }
+      return null;
+   }
+
+   /**
+    * genQuery is an overloaded version of the above method, it will process general queries that require
+    *   parsing (phrase, boolean, and multiphrase)
+    * @param field field to query
+    * @param input the actual query
+    * @return query object
+    */
+   private static Query genQuery(String field, String input) {
+
+      try {
+
+         QueryParser qParser = new QueryParser(field, analyzer);
+         return qParser.parse(input);
+      } catch(Exception e) { println(e.getMessage()); }
+
+      return null;
+   }
+
+   /**
+    * updateReaderState will check if every segment of the latest reader has edge n-grams, and build the
+    *    suggester of the reader. It runs at startup and after each refresh, so queries never wait for either.
+    */
+   private static void updateReaderState() throws IOException {
+
+      IndexSearcher indexSearcher = searcherManager.acquire();
+      try {
+         IndexReader reader = indexSearcher.getIndexReader();
+         boolean grams = false, plain = false;                      // segments with and without n-grams
+         for (LeafReaderContext leaf : reader.leaves()) {
+            FieldInfos infos = leaf.reader().getFieldInfos();
+            if (infos.fieldInfo("title" + PREFIX_SUFFIX) != null) { grams = true; }
+            else if (infos.fieldInfo("title") != null) { plain = true; }
+         }
+         prefixFields = grams && !plain;                            // a partial index would miss documents
+         suggesterOf(reader);
+      }
+      finally { searcherManager.release(indexSearcher); }
+   }
+
+   /**
+    * suggesterOf will return the suggester of a reader, building it unless it is already up to date
+    * @param reader the reader
+    * @return the suggester
+    */
+   private static Suggester suggesterOf(IndexReader reader) throws IOException {
+
+      Suggester current = suggester;
+      if (current == null || current.readerKey != readerKey(reader)) {
+         synchronized (searcher.class) {                            // only one thread builds it
+            current = suggester;
+            if (current == null || current.readerKey != readerKey(reader)) {
+               current = suggester = new Suggester(reader);
+            }
+         }
+      }
+      return current;
+   }
+
+   /**
+    * suggest will display the titles and authors that begin with a prefix, the ones found in the most documents
+    *    first. The suggester is built whenever the reader changes, a suggest query uses the latest one built.
+    * @param prefix the prefix, compared without case
+    * @param size   the number of suggestions
+    * @param out    where the suggestions are written
+    */
+   private static void suggest(String prefix, int size, PrintWriter out) {
+
+      long start = System.nanoTime();
+      try {
+
+         IndexSearcher indexSearcher = searcherManager.acquire();
+         try {
+            Suggester current = suggester;                          // may trail a refresh that is still building
+            if (current == null) { current = suggesterOf(indexSearcher.getIndexReader()); }
+
+            List<Map.Entry<String, Integer>> found = current.lookup(prefix.trim().toLowerCase(), size);
+            suggestLatency.record(System.nanoTime() - start);
+
+            if (current.isEmpty()) { out.println("Suggestions require an index built with -ngram...\n"); return; }
+            if (found.isEmpty())   { out.println("No suggestions...\n"); return; }
+
+            StringBuilder text = renderBuffer.get();
+            text.setLength(0);
+            text.append("Suggestions for '").append(prefix.trim()).append("':\n");
+            for (Map.Entry<String, Integer> suggestion : found) {
+               text.append('\t').append(suggestion.getKey()).append("   (").append(suggestion.getValue().intValue()).append(")\n");
+            }
+            out.println(text);
+         }
+         finally { searcherManager.release(indexSearcher); }
+
+      } catch (IOException e) { e.printStackTrace(); out.println("Suggest failed: " + e); }
+   }
+
+   /**
+    * Suggester is a weighted FST of the titles and authors of a reader. Each entry is the lowercased text, a
+    *    0 byte and the text as it was indexed, weighted by the number of documents it appears in, so the top
+    *    completions of a prefix are found by a shortest path search from the node the prefix leads to.
+    */
+   private static class Suggester {
+
+      final Object readerKey;                                       // the reader the suggestions came from
+      private final FST<Long> fst;                                  // null if the reader has no suggestions
+
+      Suggester(IndexReader reader) throws IOException {
+
+         TreeMap<BytesRef, Integer> entries = new TreeMap<>();     // the fst needs its entries in byte order
+         for (LeafReaderContext leaf : reader.leaves()) {
+
+            SortedSetDocValues values = leaf.reader().getSortedSetDocValues(SUGGEST_FIELD);
+            if (values == null) { continue; }                       // indexed without -ngram
+
+            Bits live = leaf.reader().getLiveDocs();
+            int[] docs = new int[(int)values.getValueCount()];      // documents per ordinal of the segment
+            for (int doc = values.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = values.nextDoc()) {
+               if (live != null && !live.get(doc)) { continue; }   // deleted or updated
+               for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd())
+                  docs[(int)ord]++;
+            }
+
+            for (int ord = 0; ord < docs.length; ord++) {
+               if (docs[ord] == 0) { continue; }
+               String text = values.lookupOrd(ord).utf8ToString().replace('\0', ' ');
+               entries.merge(new BytesRef(text.toLowerCase() + '\0' + text), docs[ord], Integer::sum);
+            }
+         }
+
+         Builder<Long> builder = new Builder<>(FST.INPUT_TYPE.BYTE1, PositiveIntOutputs.getSingleton());
+         IntsRefBuilder scratch = new IntsRefBuilder();
+         for (Map.Entry<BytesRef, Integer> entry : entries.entrySet()) {
+            builder.add(Util.toIntsRef(entry.getKey(), scratch), (long)(Integer.MAX_VALUE - entry.getValue())); // cheapest is best
+         }
+
+         this.readerKey = readerKey(reader);
+         this.fst = builder.finish();
+      }
+
+      boolean isEmpty() { return fst == null; }
+
+      /**
+       * lookup will find the completions of a prefix
+       * @param prefix the lowercased prefix
+       * @param size   the number of completions
+       * @return the completions and the number of documents of each, most documents first
+       */
+      List<Map.Entry<String, Integer>> lookup(String prefix, int size) throws IOException {
+
+         List<Map.Entry<String, Integer>> found = new ArrayList<>();
+         if (fst == null) { return found; }
+
+         FST.BytesReader in = fst.getBytesReader();
+         FST.Arc<Long> arc = fst.getFirstArc(new FST.Arc<>());
+         Long output = fst.outputs.getNoOutput();
+
+         BytesRef bytes = new BytesRef(prefix);
+         for (int i = bytes.offset; i < bytes.offset + bytes.length; i++) {   // follow the prefix
+            if (fst.findTargetArc(bytes.bytes[i] & 0xff, arc, arc, in) == null) { return found; }
+            output = fst.outputs.add(output, arc.output);
+         }
+
+         BytesRefBuilder suffix = new BytesRefBuilder();
+         for (Util.Result<Long> result : Util.shortestPaths(fst, arc, output, Comparator.naturalOrder(), size, true)) {
+
+            Util.toBytesRef(result.input, suffix);
+            BytesRef entry = new BytesRef(prefix + suffix.get().utf8ToString()); // lowercased text, 0, the text
+            String text = entry.utf8ToString();
+            found.add(new AbstractMap.SimpleEntry<>(text.substring(text.indexOf('\0') + 1),
+                                                    (int)(Integer.MAX_VALUE - result.output)));
+         }
+         return found;
+      }
+   }
+
+   /**
+    * PrefixAnalyzer will analyze every field with the analyzer it wraps, and add the edge n-grams of every
+    *    token for the *_prefix fields
+    */
+   private static class PrefixAnalyzer extends AnalyzerWrapper {
+
+      private final Analyzer delegate;
+
+      PrefixAnalyzer(Analyzer delegate) {
+         super(PER_FIELD_REUSE_STRATEGY);                           // the *_prefix fields have other components
+         this.delegate = delegate;
+      }
+
+      @Override
+      protected Analyzer getWrappedAnalyzer(String fieldName) { return delegate; }
+
+      @Override
+      protected TokenStreamComponents wrapComponents(String fieldName, TokenStreamComponents components) {
+         if (!fieldName.endsWith(PREFIX_SUFFIX)) { return components; }
+         return new TokenStreamComponents(components.getTokenizer(), new EdgeGramFilter(components.getTokenStream()));
+      }
+   }
+
+   /**
+    * EdgeGramFilter will replace every token with its prefixes, from the first character up to MAX_GRAM
+    *    characters, all at the position of the token
+    */
+   private static final class EdgeGramFilter extends TokenFilter {
+
+      private final CharTermAttribute term = addAttribute(CharTermAttribute.class);
+      private final PositionIncrementAttribute position = addAttribute(PositionIncrementAttribute.class);
+      private final char[] token = new char[MAX_GRAM];              // the first characters of the current token
+      private int length, gram;                                     // characters of the token and of the last gram
+      private State state;                                          // attributes of the current token
+
+      EdgeGramFilter(TokenStream input) { super(input); }
+
+      @Override
+      public boolean incrementToken() throws IOException {
+
+         if (gram < length) {                                       // the next prefix of the current token
+            restoreState(state);
+            gram++;
+            if (gram < length && Character.isHighSurrogate(token[gram - 1])) { gram++; } // dont split a character
+            term.copyBuffer(token, 0, gram);
+            position.setPositionIncrement(0);
+            return true;
+         }
+
+         if (!input.incrementToken()) { return false; }
+
+         length = Math.min(term.length(), MAX_GRAM);
+         System.arraycopy(term.buffer(), 0, token, 0, length);
+         state = captureState();
+         gram = (length > 1 && Character.isHighSurrogate(token[0])) ? 2 : 1;
+         term.setLength(gram);                                      // the first prefix keeps the position
+         return true;
+      }
+
+      @Override
+      public void reset() throws IOException {
+         super.reset();
+         length = gram = 0;
+         state = null;
+      }
+   }
+
+   /**
+    * printScores will display the scores of documents from a query, along with the key, title and year of each.
+    *    Only those stored fields are decoded, and the text is built in a buffer reused by the thread.
+    * @param indexSearcher the searcher the query ran on
+    * @param results       the results of the query
+    * @param type          type of query
+    * @param page          the page of the results, starting at 1
+    * @param out           where the results are written
+    */
+   private static void printScores(IndexSearcher indexSearcher, Results results, String type, int page, PrintWriter out)
+         throws IOException {
+
+      TopDocs topDocs = results.topDocs;
+      ScoreDoc[] scores = topDocs.scoreDocs;                         // get the document scores
+      if (scores.length == 0) { out.println("No results..."); return; } // no results, dont want errors
+
+      StringBuilder text = renderBuffer.get();
+      HitFields fields = hitFields.get();
+      text.setLength(0);
+      text.append("Results for ").append(type).append(" query");      // display the query type
+      if (page > 1) { text.append(", page ").append(page); }
+      text.append(":\n");
+
+      for (ScoreDoc score : scores) {                                // display a page of documents
+
+         fields.load(indexSearcher, score.doc);
+         int start = text.append("\tDoc: ").length();
+         pad(text.append(score.doc), start, 7);
+         appendScore(text.append("   Score: "), score.score);
+         appendValue(text.append("   Key: "), fields.get("key"));
+         appendValue(text.append("   Year: "), fields.get("year"));
+         appendValue(text.append("   Title: "), fields.get("title")).append('\n'); // display document info
+      }
+
+      text.append("\tTotal hits: ").append(topDocs.totalHits).append('\n'); // display total number of hits
+      if (results.partial) { text.append("\tFacets counted over about ").append(hitLimit).append(" hits (-hits)\n"); }
+
+      if (results.facets != null) {                                  // display the hits per facet value
+         for (Map.Entry<String, Map<String, Integer>> dim : results.facets.entrySet()) {
+            text.append('\t').append(dim.getKey()).append(": {");
+            int v = 0;
+            for (Map.Entry<String, Integer> value : dim.getValue().entrySet()) {
+               if (v++ > 0) { text.append(", "); }
+               text.append(value.getKey()).append('=').append(value.getValue().intValue());
+            }
+            text.append("}\n");
+         }
+      }
+
+      out.println(text);                                             // a single write for the whole result
+   }
+
+   /**
+    * pad will pad a value written to a buffer with spaces up to a width
+    * @param out   the buffer the value was written to
+    * @param start the position the value was written at
+    * @param width the width of the value with padding
+    */
+   private static void pad(StringBuilder out, int start, int width) {
+
+      while (out.length() - start < width) { out.append(' '); }     // the value was appended before the call
+   }
+
+   /**
+    * appendScore will write a score with three decimals, without the allocations of String.format
+    * @param out   where the score is written
+    * @param score the score
+    * @return out
+    */
+   private static StringBuilder appendScore(StringBuilder out, float score) {
+
+      if (Float.isNaN(score)) { return out.append("NaN"); }          // scores are not computed when sorting
+
+      long scaled = Math.round(score * 1000.0);
+      if (scaled < 0) { out.append('-'); scaled = -scaled; }
+      long fraction = scaled % 1000;
+      out.append(scaled / 1000).append('.');
+      if (fraction < 100) { out.append('0'); }
+      if (fraction < 10)  { out.append('0'); }
+      return out.append(fraction);
+   }
+
+   /**
+    * appendValue will write a stored value on a single line
+    * @param out   where the value is written
+    * @param value the value, null if the document does not have it
+    * @return out
+    */
+   private static StringBuilder appendValue(StringBuilder out, CharsRef value) {
+
+      if (value == null) { return out.append('-'); }
+
+      for (int i = value.offset; i < value.offset + value.length; i++) {
+         char c = value.chars[i];
+         out.append((c == '\n' || c == '\r' || c == '\t') ? ' ' : c); // bibtex values can span lines
+      }
+      return out;
+   }
+
+   /**
+    * HitFields will load only the named stored fields of a document, the others are skipped without being
+    *    decoded, and stops reading the document once all of them have been seen. The key and id are stored after
+    *    every bibtex field, so a document is still read past its abstract. Values are decoded into buffers reused
+    *    from one document to the next, so one should only be used by a single thread.
+    */
+   private static class HitFields extends StoredFieldVisitor {
+
+      private final String[] names;                                  // fields to load, few enough to scan
+      private final CharsRefBuilder[] values;                        // decoded values of the current document
+      private final boolean[] found;                                 // fields the current document had
+      private int missing;                                           // fields not seen yet
+
+      HitFields(String... names) {
+
+         this.names = names;
+         this.values = new CharsRefBuilder[names.length];
+         this.found = new boolean[names.length];
+         for (int i = 0; i < names.length; i++) { values[i] = new CharsRefBuilder(); }
+      }
+
+      /**
+       * load will read the fields of a document
+       * @param indexSearcher the searcher the document belongs to
+       * @param doc           id of the document
+       */
+      void load(IndexSearcher indexSearcher, int doc) throws IOException {
+
+         Arrays.fill(found, false);
+         missing = names.length;
+         indexSearcher.doc(doc, this);
+      }
+
+      /**
+       * get will return the first value of a field of the loaded document
+       * @param name the field
+       * @return the value, valid until the next load, null if the document does not have it
+       */
+      CharsRef get(String name) {
+
+         int i = indexOf(name);
+         return (i >= 0 && found[i]) ? values[i].get() : null;
+      }
+
+      private int indexOf(String name) {
+
+         for (int i = 0; i < names.length; i++) { if (names[i].equals(name)) { return i; } }
+         return -1;
+      }
+
+      @Override
+      public Status needsField(FieldInfo fieldInfo) {
+
+         if (missing == 0) { return Status.STOP; }                  // only skips what is stored after the last one
+         int i = indexOf(fieldInfo.name);
+         return (i >= 0 && !found[i]) ? Status.YES : Status.NO;      // the abstract and the rest are skipped, not decoded
+      }
+
+      @Override
+      public void stringField(FieldInfo fieldInfo, byte[] value) {
+
+         int i = indexOf(fieldInfo.name);
+         values[i].copyUTF8Bytes(value, 0, value.length);
+         found[i] = true;
+         missing--;
+      }
+   }
+
+   /**
+    * commands is a helper function for query, it will return false for a quit command,
+    *    otherwise it will process a single command.
+    * @param input   the input from the user
+    * @param session the page size and cursor of the prompt
+    * @return false if quit command, otherwise true
+    */
+   private static boolean commands(String input, Session session) {
+
+      String cmd = input.split(" ")[0].toLowerCase();
+      if (session.command(input, console)) { return true; }       // !next and !size
+
+      switch (cmd) {
+
+         case ("!quit"):      return false;                       // exit command
+         case ("!help"):      getHelp(); break;                   // display commands available
+         case ("!queryhelp"): getQueryHelp(); break;              // separated due to size
+         case ("!stats"):     getStats(console); break;           // display query, indexing and refresh metrics
+         case ("!add"):       addDocs(input); break;              // index a .bib file while querying
+         case ("!export"):    export(input); break;               // write every match of a query to a file
+         case ("!keywords"):  keywords(input); break;             // the most telling terms of an abstract
+         case ("!related"):   related(input); break;              // papers with abstracts like the one of a paper
+         case ("!sort"):                                          // change the order of the results
+            String order = input.substring(cmd.length()).trim().toLowerCase();
+            if (getSort(order) != null) { sortBy = order; }
+            else { println("'" + order + "' is an invalid order"); }
+            println("Sorting by " + sortBy + "...\n"); break;
+         case ("!facets"):                                        // turn facet counts on/off
+            showFacets = !showFacets;
+            println("Facets " + (showFacets ? "enabled...\n" : "disabled...\n")); break;
+         case ("!trace"):                                         // turn tracing on/off
+            trace = !trace;
+            println("Tracing " + (trace ? "enabled...\n" : "disabled...\n")); break;
+
+         default: println("'" + cmd + "' is an invalid command"); // reached an invalid command
+      }
+
+      return true;
+   }
+
+   /**
+    * batch will run every query in the query file in parallel, writing the results as each query finishes.
+    *    All queries see the same point in time view of the index. At the end the throughput and latency
+    *    percentiles of the run are displayed.
+    */
+   private static void batch() throws Exception {
+
+      int cores = Runtime.getRuntime().availableProcessors();
+      Latency latency = new Latency();
+      AtomicInteger failed = new AtomicInteger();
+      int count = 0;
+
+      // the caller runs the query itself when the queue is full, so the whole file is never held in memory
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(cores, cores, 0, TimeUnit.SECONDS,
+                                                       new ArrayBlockingQueue<>(cores * 4),
+                                                       new ThreadPoolExecutor.CallerRunsPolicy());
+
+      IndexSearcher indexSearcher = searcherManager.acquire();        // one searcher for the whole run
+      long start = System.nanoTime();
+
+      try (BufferedReader in = Files.newBufferedReader(Paths.get(queryFile), StandardCharsets.UTF_8);
+           Writer out = (resultFile != null) ? Files.newBufferedWriter(Paths.get(resultFile), StandardCharsets.UTF_8)
+                                             : new BufferedWriter(new OutputStreamWriter(System.out))) {
+
+         String line;
+         while ((line = in.readLine()) != null) {
+
+            line = line.trim();
+            if (line.isEmpty()) { continue; }
+            count++;
+
+            int tab = line.indexOf('\t');                               // queries may come with their own id
+            String qid   = (tab > 0) ? line.substring(0, tab) : Integer.toString(count);
+            String query = (tab > 0) ? line.substring(tab + 1).trim() : line;
+
+            pool.execute(() -> {
+               StringBuilder result = new StringBuilder(1024);         // the whole result is written at once
+               try {
+                  long begin = System.nanoTime();
+                  String[] input = query.split(" ");
+                  Results results = search(indexSearcher, input[0].toLowerCase(),
+                                           (input.length > 1) ? Arrays.copyOfRange(input, 1, input.length) : null);
+                  latency.record(System.nanoTime() - begin);
+
+                  if (results == null) { failed.incrementAndGet(); return; }
+                  begin = System.nanoTime();
+                  formatResult(indexSearcher, qid, query, results, result);
+                  renderLatency.record(System.nanoTime() - begin);
+
+                  synchronized (out) { out.append(result); }
+               } catch (Exception e) { failed.incrementAndGet(); printerr("Query " + qid + " failed: " + e); }
+            });
+         }
+
+         pool.shutdown();
+         pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } finally { searcherManager.release(indexSearcher); }
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+      printerr(String.format("Ran %d queries on %d threads in %.2fs (%.0f queries/sec), %d failed",
+                             count, cores, seconds, count / seconds, failed.get()));
+      printerr("Latency: " + latency);
+   }
+
+   /**
+    * formatResult will write the result of a single batch query in the result format
+    * @param indexSearcher the searcher the query ran on
+    * @param qid           id of the query
+    * @param query         the query as it was given
+    * @param results       the results of the query
+    * @param out           where the result is written
+    */
+   private static void formatResult(IndexSearcher indexSearcher, String qid, String query, Results results,
+                                    StringBuilder out) throws IOException {
+
+      TopDocs topDocs = results.topDocs;
+      boolean json = resultFormat.equals("json");
+      if (json) {
+         out.append("{\"qid\":"); jsonString(qid, out);
+         out.append(",\"query\":"); jsonString(query, out);
+         out.append(",\"hits\":").append(topDocs.totalHits).append(",\"results\":[");
+      }
+
+      ScoreDoc[] scores = topDocs.scoreDocs;
+      HitFields item = idFields.get();
+      for (int rank = 0; rank < scores.length; rank++) {
+
+         item.load(indexSearcher, scores[rank].doc);                           // only load the ids
+
+         if (json) {
+            if (rank > 0) { out.append(','); }
+            out.append("{\"rank\":").append(rank + 1).append(",\"id\":"); jsonString(item.get("id"), out);
+            out.append(",\"bibkey\":"); jsonString(item.get("bibkey"), out);
+            out.append(",\"doc\":").append(scores[rank].doc).append(",\"score\":").append(scores[rank].score).append('}');
+         } else {                                                       // qid Q0 docno rank score tag, no spaces in a citation key
+            out.append(qid).append(" Q0 ").append(item.get("bibkey")).append(' ').append(rank + 1).append(' ')
+               .append(scores[rank].score).append(" searcher\n");
+         }
+      }
+
+      if (json) {
+         out.append(']');
+         if (results.facets != null) {                                  // "facets":{"year":{"2015":3,...}}
+            out.append(",\"facets\":{");
+            int d = 0;
+            for (Map.Entry<String, Map<String, Integer>> dim : results.facets.entrySet()) {
+               if (d++ > 0) { out.append(','); }
+               jsonString(dim.getKey(), out); out.append(":{");
+               int v = 0;
+               for (Map.Entry<String, Integer> value : dim.getValue().entrySet()) {
+                  if (v++ > 0) { out.append(','); }
+                  jsonString(value.getKey(), out); out.append(':').append(value.getValue());
+               }
+               out.append('}');
+            }
+            out.append('}');
+         }
+         out.append("}\n");
+      }
+   }
+
+   /**
+    * jsonString will write a string as a quoted and escaped json string
+    * @param value the string, null is written as null
+    * @param out   where the string is written
+    */
+   private static void jsonString(CharSequence value, StringBuilder out) {
+
+      if (value == null) { out.append("null"); return; }
+
+      out.append('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"':  out.append("\\\""); break;
+            case '\\': out.append("\\\\"); break;
+            case '\n': out.append("\\n"); break;
+            case '\r': out.append("\\r"); break;
+            case '\t': out.append("\\t"); break;
+            default:
+               if (c < 0x20) { out.append(String.format("\\u%04x", (int)c)); }
+               else          { out.append(c); }
+         }
+      }
+      out.append('"');
+   }
+
+   /**
+    * serve will answer queries over a local socket until the process is killed. Every line sent is a query in the
+    *    same syntax as the query prompt, and the results are sent back followed by an empty line. Each connection
+    *    is handled by a bounded pool of workers, new connections are turned away while all workers are busy, and
+    *    a connection that sends nothing for IDLE_TIMEOUT is closed so it gives its worker back.
+    */
+   private static void serve() throws IOException {
+
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                                                       new ArrayBlockingQueue<>(workers));
+
+      ServerSocket listener;
+      try { listener = new ServerSocket(port, workers, InetAddress.getLoopbackAddress()); }
+      catch (BindException e) {                                       // another server has the port, nothing to serve
+         printerr("Cannot serve queries on port " + port + ": " + e.getMessage()); System.exit(1); return;
+      }
+
+      if (nrtWriter != null) {                                        // nothing else will be indexed, save it all
+         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try { commit(nrtWriter); nrtWriter.close(); } catch (IOException e) { e.printStackTrace(); }
+         }));
+      }
+
+      try (ServerSocket server = listener) {
+
+         println("Serving queries on " + server.getLocalSocketAddress() + " with " + workers + " workers");
+         while (true) {
+
+            Socket client = server.accept();
+            client.setSoTimeout(IDLE_TIMEOUT);                         // reads fail instead of holding the worker
+            try { pool.execute(() -> handleClient(client)); }
+            catch (RejectedExecutionException e) {                     // every worker is busy, turn the client away
+               try (PrintWriter out = new PrintWriter(client.getOutputStream(), true)) { out.println("Server busy...\n"); }
+               client.close();
+            }
+         }
+      }
+   }
+
+   /**
+    * handleClient will answer the queries of a single connection to the server
+    * @param client the connection
+    */
+   private static void handleClient(Socket client) {
+
+      Session session = new Session();                                 // every connection pages on its own
+
+      try (Socket socket = client;
+           BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+           PrintWriter out = new PrintWriter(new BufferedWriter(
+                                new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)))) {
+
+         String input;
+         try {
+            while ((input = in.readLine()) != null) {
+
+               input = input.trim();
+               if (input.equalsIgnoreCase("!quit")) { break; }
+               else if (input.equalsIgnoreCase("!stats")) { getStats(out); }
+               else if (!input.isEmpty() && input.charAt(0) == '!' && session.command(input, out)) { } // !next and !size
+               else if (input.isEmpty() || input.charAt(0) == '!') { out.println("Only queries, !next, !size and !stats are served...\n"); }
+               else { processQuery(input.split(" "), session, out); }
+
+               out.flush();                                            // one write per query
+            }
+         } catch (SocketTimeoutException e) {                          // idle, let a waiting connection have the worker
+            out.println("Idle for " + IDLE_TIMEOUT / 1000 + "s, closing...\n");
+         }
+      } catch (IOException e) { printerr("Client disconnected: " + e.getMessage()); }
+   }
+
+   /**
+    * runBench will run one of the benchmarks against the index
+    * @param name the name of the benchmark
+    */
+   private static void runBench(String name) throws Exception {
+
+      switch (name) {
+
+         case ("dirs"):    benchDirectories(); break;
+         case ("queries"): for (int scale : benchScales) { benchQueries(scale); } break;
+         case ("index"):   for (int scale : benchScales) { benchIndex(scale); } break;
+         case ("ingest"):  for (int scale : benchScales) { benchIngest(scale); } break;
+         default:       println("'" + name + "' is an invalid benchmark");
+      }
+   }
+
+   /**
+    * getBenchQueries will build the benchmark queries
+    * @return the query objects
+    */
+   private static List<Query> getBenchQueries() {
+
+      ArrayList<Query> queries = new ArrayList<>();
+      for (String item : BENCH_QUERIES) {
+         String[] input = item.split(" ");
+         queries.add(parseQuery(input[0], (input.length > 1) ? Arrays.copyOfRange(input, 1, input.length) : null));
+      }
+      return queries;
+   }
+
+   /**
+    * benchDirectories will run the benchmark queries from several concurrent clients against each of the
+    *    directory implementations and display the throughput and latency of each
+    */
+   private static void benchDirectories() throws Exception {
+
+      int clients = Math.max(4, Runtime.getRuntime().availableProcessors());
+      List<Query> queries = getBenchQueries();
+
+      println("Directory benchmark, " + clients + " clients, " + queries.size() + " queries:");
+      for (String type : new String[]{ "simple", "nio", "mmap" }) {
+
+         try (Directory directory = openDirectory(type, Paths.get(dir));
+              DirectoryReader reader = DirectoryReader.open(directory)) {
+
+            IndexSearcher indexSearcher = new IndexSearcher(reader);
+            indexSearcher.setQueryCache(null);                             // measure the directory, not the cache
+
+            runQueries(indexSearcher, queries, clients, 20, new Latency()); // warm up the jvm and the page cache
+            Latency latency = new Latency();
+            long elapsed = runQueries(indexSearcher, queries, clients, 100, latency);
+
+            println(String.format("\t%-7s %8.0f queries/sec   %s", type, latency.count() / (elapsed / 1e9), latency));
+         }
+      }
+   }
+
+   /**
+    * benchQueries will build an index of the corpus copied scale times, then measure for every query type
+    *    how long it takes to build the query object (including the QueryParser for phrase, multiphrase,
+    *    boolean and disjunction queries), how long it takes to find it in the parsed query cache, and the
+    *    throughput and latency of searching with it
+    * @param scale number of copies of the corpus to index
+    */
+   private static void benchQueries(int scale) throws Exception {
+
+      Path path = Files.createTempDirectory("bench-index");
+
+      try (Directory directory = FSDirectory.open(path)) {
+
+         buildBenchIndex(directory, scale);
+
+         try (DirectoryReader reader = DirectoryReader.open(directory)) {
+
+            IndexSearcher indexSearcher = new IndexSearcher(reader);
+            indexSearcher.setQueryCache(null);                             // measure the query, not the cache
+
+            println(String.format("Query benchmark, %dx corpus (%d docs), %dms warmup + %dms per query type:",
+                                  scale, reader.numDocs(), BENCH_WARMUP, BENCH_MEASURE));
+            println(String.format("\t%-12s %12s %12s %14s %10s %10s %10s", "type", "build ns/op", "cached ns/op",
+                                  "search ops/s", "p50 ms", "p99 ms", "hits"));
+
+            for (String item : BENCH_QUERIES) {
+
+               String[] input = item.split(" ");
+               String   type  = input[0];
+               String[] info  = (input.length > 1) ? Arrays.copyOfRange(input, 1, input.length) : null;
+
+               Latency build = new Latency();                              // query construction cost
+               measure(() -> parseQuery(type, info), build);
+               Latency cached = new Latency();                             // cost with the parsed query cache
+               measure(() -> buildQuery(type, info), cached);
+
+               Query query = buildQuery(type, info);                       // search cost, including the rewrite
+               Latency search = new Latency();
+               long elapsed = measure(() -> indexSearcher.search(query, pageSize), search);
+
+               println(String.format("\t%-12s %12d %12d %14.0f %10.3f %10.3f %10d", type, build.total() / build.count(),
+                                     cached.total() / cached.count(), search.count() / (elapsed / 1e9), search.percentile(50) / 1e6,
+                                     search.percentile(99) / 1e6, indexSearcher.count(query)));
+            }
+         }
+      } finally { deleteAll(path); }
+   }
+
+   /**
+    * benchIndex will measure the indexing throughput of the corpus copied scale times, from reading the
+    *    .bib file through to the commit, on a single thread and then on the -t workers (every core if -t is
+    *    not given) and report the speedup of the workers, after a run that warms up the jvm
+    * @param scale number of copies of the corpus to index
+    */
+   private static void benchIndex(int scale) throws Exception {
+
+      int workers = (threads > 1) ? threads : Runtime.getRuntime().availableProcessors();
+      int given = threads;
+      println("Index benchmark, " + scale + "x corpus:");
+
+      try {
+         threads = 1;
+         benchIndexRun(scale);                                            // warm up the jvm, the first run is slower
+         double single = benchIndexRun(scale);
+         if (workers == 1) { println("\tOnly one core, there is no speedup to measure"); return; }
+
+         threads = workers;
+         double parallel = benchIndexRun(scale);
+         println(String.format("\t%d threads are %.2fx the throughput of a single thread", workers, parallel / single));
+      } finally { threads = given; }
+   }
+
+   /**
+    * benchIndexRun is a helper function for benchIndex, it will build the index once with the current threads
+    * @param scale number of copies of the corpus to index
+    * @return the entries indexed per second
+    */
+   private static double benchIndexRun(int scale) throws Exception {
+
+      Path path = Files.createTempDirectory("bench-index");
+
+      try (Directory directory = FSDirectory.open(path)) {
+
+         long start = System.nanoTime();
+         int count = buildBenchIndex(directory, scale);
+         double seconds = (System.nanoTime() - start) / 1e9;
+
+         println(String.format("\t%d thread(s): %d entries in %.2fs including the commit, %.0f entries/sec",
+                               threads, count, seconds, count / seconds));
+         return count / seconds;
+      } finally { deleteAll(path); }
+   }
+
+   /**
+    * buildBenchIndex will index the corpus copied scale times
+    * @param directory the directory to build the index in
+    * @param scale     number of copies of the corpus to index
+    * @return the number of documents indexed
+    */
+   private static int buildBenchIndex(Directory directory, int scale) throws Exception {
+
+      Path scaled = scaledCorpus(scale);                                  // write the synthetic corpus to disk
+      List<String> files = (scaled == null) ? corpus : Arrays.asList(scaled.toString());
+
+      try (IndexWriter indexWriter = new IndexWriter(directory, getWriterConfig()
+                                                     .setOpenMode(IndexWriterConfig.OpenMode.CREATE))) {
+         int count = getDocs(new IndexWriter[]{ indexWriter }, files);
+         commit(indexWriter);
+         return count;
+      } finally { if (scaled != null) { Files.delete(scaled); } }
+   }
+
+   /**
+    * benchIngest will measure the ingest front end on the corpus copied scale times: how fast each front end
+    *    splits the corpus into entries, and the author splitting and key generation against the split and join
+    *    versions they replaced. Each step reports entries/sec and the bytes it allocates per entry, and the
+    *    entries and keys that differ between the versions are counted.
+    * @param scale number of copies of the corpus
+    */
+   private static void benchIngest(int scale) throws Exception {
+
+      Path scaled = scaledCorpus(scale);
+      List<String> files = (scaled == null) ? corpus : Arrays.asList(scaled.toString());
+
+      try {
+         long bytes = 0;
+         for (String file : files) { bytes += Files.size(Paths.get(file)); }
+
+         List<String> read = readEntries(files, false), scanned = readEntries(files, true);
+         int entriesDiffer = Math.abs(read.size() - scanned.size());
+         for (int i = 0; i < Math.min(read.size(), scanned.size()); i++) {
+            if (!read.get(i).equals(scanned.get(i))) { entriesDiffer++; }
+         }
+
+         // the author, title and year of each entry, as the parser sees them
+         List<String[]> parts = new ArrayList<>();
+         BibTeXParser parser = newParser();
+         for (String raw : scanned) {
+            try {
+               for (BibTeXEntry entry : parser.parse(new StringReader(raw)).getEntries().values()) {
+                  Value author = entry.getField(BibTeXEntry.KEY_AUTHOR);
+                  Value title  = entry.getField(BibTeXEntry.KEY_TITLE);
+                  Value year   = entry.getField(BibTeXEntry.KEY_YEAR);
+                  if (author != null && title != null && year != null)
+                     parts.add(new String[]{ author.toUserString(), title.toUserString(), year.toUserString() });
+               }
+            } catch (ObjectResolutionException | ParseException | TokenMgrException e) { }    // skipped by the ingest too
+         }
+
+         long[] sink = new long[1];                                           // keeps the jit from dropping the work
+         println(String.format("Ingest benchmark, %dx corpus (%d entries, %.1f MB), %dms warmup + %dms per step:",
+                               scale, scanned.size(), bytes / 1048576.0, BENCH_WARMUP, BENCH_MEASURE));
+         println(String.format("\t%-22s %12s %10s %12s", "step", "entries/sec", "MB/sec", "bytes/entry"));
+
+         measureIngest("reader", () -> countEntries(files, false), bytes);
+         measureIngest("scan", () -> countEntries(files, true), bytes);
+
+         measureIngest("authors split(\"and\")", () -> {
+            for (String[] part : parts) {
+               String[] names = part[0].contains(" and ") ? part[0].split("and") : new String[]{ part[0] };
+               sink[0] += names.length;
+            }
+            return parts.size();
+         }, 0);
+         measureIngest("authors nextAnd", () -> {
+            for (String[] part : parts) {
+               String authors = part[0];
+               for (int from = 0, and; from <= authors.length(); from = and + 3) {
+                  and = nextAnd(authors, from);
+                  sink[0] += authors.substring(from, and).trim().length();
+               }
+            }
+            return parts.size();
+         }, 0);
+
+         measureIngest("genKey split/join", () -> {
+            for (String[] part : parts) { sink[0] += splitKey(part[0], part[1], part[2]).length(); }
+            return parts.size();
+         }, 0);
+         measureIngest("genKey", () -> {
+            for (String[] part : parts) { sink[0] += genKey(part[0], part[1], part[2]).length(); }
+            return parts.size();
+         }, 0);
+
+         int keysDiffer = 0, authorsDiffer = 0;
+         for (String[] part : parts) {
+            if (!splitKey(part[0], part[1], part[2]).equals(genKey(part[0], part[1], part[2]))) { keysDiffer++; }
+            if (part[0].contains(" and ") && part[0].split("and").length != part[0].split("\\s+and\\s+").length) {
+               authorsDiffer++;                                               // split inside a name
+            }
+         }
+         println(String.format("\t%d of %d entries differ between the front ends, %d of %d keys differ, " +
+                               "%d author lists were split inside a name", entriesDiffer, scanned.size(),
+                               keysDiffer, parts.size(), authorsDiffer));
+
+      } finally { if (scaled != null) { Files.delete(scaled); } }
+   }
+
+   /**
+    * splitKey is the version of genKey that splits and joins the parts of the key, kept for benchIngest
+    * @param author author of the document
+    * @param title  title of the document
+    * @param year   release year of the document
+    * @return the key
+    */
+   private static String splitKey(String author, String title, String year) {
+
+      title = title.contains(":") ? title.substring(0,title.indexOf(":")) : title;
+      String[] key = { author.split(author.contains(",") ? "," : " ")[0], year, String.join("-", title.split(" ")) };
+      return String.join("-", key);
+   }
+
+   /**
+    * readEntries and countEntries will split every file of the corpus into entries with one of the front ends
+    * @param files the .bib files
+    * @param scan  true for a BibScanner, false for a BibEntryReader
+    * @return the raw text of the entries, or how many there are
+    */
+   private static List<String> readEntries(List<String> files, boolean scan) throws IOException {
+
+      List<String> entries = new ArrayList<>();
+      for (String file : files) {
+         try (EntrySource source = openEntries(file, scan)) {
+            for (String raw = source.next(); raw != null; raw = source.next()) { entries.add(raw); }
+         }
+      }
+      return entries;
+   }
+
+   private static int countEntries(List<String> files, boolean scan) throws IOException {
 
+      int count = 0;
+      for (String file : files) {
+         try (EntrySource source = openEntries(file, scan)) {
+            while (source.next() != null) { count++; }
+         }
+      }
+      return count;
+   }
 
-   public static void main(String[] args) {
+   /**
+    * measureIngest will run a step of the ingest over and over, first to warm up the jvm and then to measure
+    *    it, and display its rate and how much the thread allocated
+    * @param label name of the step
+    * @param step  the step, returns the number of entries it handled
+    * @param bytes bytes of the corpus read by each run, 0 if it reads none
+    */
+   private static void measureIngest(String label, Callable<Integer> step, long bytes) throws Exception {
 
+      long end = System.nanoTime() + BENCH_WARMUP * 1_000_000L;
+      while (System.nanoTime() < end) { step.call(); }                      // let the jit compile the hot path
 
-      /* Default Values */
-      openMode = IndexWriterConfig.OpenMode.CREATE_OR_APPEND; // set the writer config to create
-      dir      = getDir() + "/index.lucene";                  // index directory
-      corpus   = "cs-bibliography.bib";                       // corpus file
+      ThreadMXBean threadBean = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+      long thread = Thread.currentThread().getId();
+      long allocated = threadBean.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      long entries = 0, runs = 0;
 
-      argCheck(args);
-      analyzer = new StandardAnalyzer();                      // init the analyzer with the standard one
+      end = start + BENCH_MEASURE * 1_000_000L;
+      do { entries += step.call(); runs++; } while (System.nanoTime() < end);
 
-      IndexWriter indexWriter;                                // used to write to the index
-      IndexWriterConfig writerConfig;                         // config options for the writer
-      IndexReader indexReader;                                // used to read the index
+      double seconds = (System.nanoTime() - start) / 1e9;
+      allocated = threadBean.getThreadAllocatedBytes(thread) - allocated;
+      println(String.format("\t%-22s %12.0f %10s %12.0f", label, entries / seconds,
+                            (bytes > 0) ? String.format("%.1f", runs * bytes / 1048576.0 / seconds) : "-",
+                            allocated / (double)entries));
+   }
 
-      try { // if something happens here we are doomed...
+   /**
+    * scaledCorpus will write the corpus copied scale times to a temporary file. Each copy gets its own citation
+    *    keys, so the copies are separate documents instead of replacing each other.
+    * @param scale number of copies of the corpus
+    * @return the file, null for a single copy which is the corpus itself
+    */
+   private static Path scaledCorpus(int scale) throws IOException {
 
-         // the directory of the index
-         Directory directory = SimpleFSDirectory.open(Paths.get(dir)); // open a File System directory for the index
+      if (scale <= 1) { return null; }
 
-         // .CREATE_OR_APPEND != .CREATE OR .APPEND
-         if (!DirectoryReader.indexExists(directory) ||
-                 openMode == IndexWriterConfig.OpenMode.CREATE || openMode == IndexWriterConfig.OpenMode.APPEND) {
+      Path scaled = Files.createTempFile("bench-corpus", ".bib");
+      try (Writer writer = Files.newBufferedWriter(scaled, StandardCharsets.UTF_8)) {
 
-            writerConfig = new IndexWriterConfig(analyzer);           // use the analyzer for index creation
-            writerConfig.setOpenMode(openMode);                       // set the mode of the writer
+         for (int copy = 0; copy < scale; copy++) {
+            for (String file : corpus) {
+               try (EntrySource entries = openEntries(file, scanIngest)) {
 
-            indexWriter = new IndexWriter(directory, writerConfig);   // create the writer
-            indexWriter.addDocuments(getDocs());                      // get the documents in the corpus
-            indexWriter.commit();                                     // commit documents to the writer
-            indexWriter.close();                                      // writer is no longer needed, close it
+                  String raw;
+                  while ((raw = entries.next()) != null) {
+                     int comma = raw.indexOf(',');                     // end of the citation key
+                     if (comma < 0) { continue; }
+                     writer.append(raw, 0, comma).append("-").append(Integer.toString(copy))
+                           .append(raw, comma, raw.length()).append("\n\n");
+                  }
+               }
+            }
          }
-
-         // reader object to read index
-         indexReader   = DirectoryReader.open(directory);             // create indexReader for the searcher
-         indexSearcher = new IndexSearcher(indexReader);              // create searcher for the index
-
-         getInput();                                                  // get queries from user
-
-      } catch (Exception e) { e.getStackTrace(); }                    // error found, display it
+      }
+      return scaled;
    }
 
    /**
-    * argCheck will check the arguments for the program
-    * @param args the array of arguments
+    * measure will run an operation over and over, first to warm up the jvm and then to measure it
+    * @param op      the operation
+    * @param latency records the latency of each run once warmed up
+    * @return the wall clock time spent measuring in nanoseconds
     */
-   private static void argCheck(String[] args) {
-      if (args.length == 0) { usage(); }
-
-      for (int i = 0; i < args.length; i++) {
-
-         if (args[i].equals("-f") && new File(args[i+1]).exists()) { corpus = args[i+1]; i++; }
-         if (args[i].equals("-i") && Files.isDirectory(Paths.get(args[i + 1]))) { dir = args[i+1]; i++; }
-         if (args[i].equals("-o")) openMode = IndexWriterConfig.OpenMode.CREATE;
-         if (args[i].equals("-a")) openMode = IndexWriterConfig.OpenMode.APPEND;
-         if (args[i].equals("-r")) openMode = null;
+   private static long measure(Callable<?> op, Latency latency) throws Exception {
+
+      long end = System.nanoTime() + BENCH_WARMUP * 1_000_000L;
+      while (System.nanoTime() < end) { op.call(); }                      // let the jit compile the hot path
+
+      long start = System.nanoTime();
+      end = start + BENCH_MEASURE * 1_000_000L;
+      long now = start;
+      while (now < end) {
+         op.call();
+         long after = System.nanoTime();
+         latency.record(after - now);
+         now = after;
       }
 
+      return now - start;
    }
 
    /**
-    * usage() will display the accepted parameters that are completely optional
+    * deleteAll will delete a directory and everything in it
+    * @param path the directory
     */
-   private static void usage() {
-      printerr("Accepted parameters:\n" +
-              "\t-f <corupus-file>, will set the corpus file location, default is cs-bibliography.bib\n" +
-              "\t-i <index-directory>, will set the index directory, default is ./index.lucene\n" +
-              "\t-o, will set the IndexWriterConfig.OpenMode to CREATE, default is CREATE_OR_APPEND\n" +
-              "\t-a, will set the IndexWriterConfig.OpenMode to APPEND\n" +
-              "\t-r, will set the IndexWriterConfig.OpenMode to null, making the program read only");
+   private static void deleteAll(Path path) throws IOException {
+      try (Stream<Path> files = Files.walk(path)) {
+         files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+      }
    }
 
    /**
-    * getDocs will parse a .bib file for a list of documents in a corpus.
-    * @return a list of documents
+    * runQueries will run a list of queries from several client threads at once
+    * @param indexSearcher the searcher to use
+    * @param queries       the queries to run
+    * @param clients       number of client threads
+    * @param rounds        number of times each client runs every query
+    * @param latency       records the latency of each query
+    * @return the wall clock time taken in nanoseconds
     */
-   private static ArrayList<Document> getDocs() {
+   private static long runQueries(IndexSearcher indexSearcher, List<Query> queries, int clients, int rounds,
+                                  Latency latency) throws Exception {
+
+      ExecutorService pool = Executors.newFixedThreadPool(clients);
+      ArrayList<Future<?>> running = new ArrayList<>();
+      long start = System.nanoTime();
+
+      for (int c = 0; c < clients; c++) {
+         running.add(pool.submit(() -> {
+            for (int r = 0; r < rounds; r++) {
+               for (Query query : queries) {
+                  long begin = System.nanoTime();
+                  indexSearcher.search(query, pageSize);
+                  latency.record(System.nanoTime() - begin);
+               }
+            }
+            return null;
+         }));
+      }
 
-      // list of documents
-      ArrayList<Document> list = new ArrayList<>();
+      for (Future<?> client : running) { client.get(); }                   // rethrows anything a client hit
+      pool.shutdown();
 
-      try {
+      return System.nanoTime() - start;
+   }
 
-         // get the contents of the corpus file and filter it
-         Reader reader = new BufferedReader(new FileReader(corpus));
-         CharacterFilterReader filter = new CharacterFilterReader(reader);
+   /**
+    * addDocs will index a .bib file in the background while queries continue, the new documents become
+    *    searchable on the next near-real-time refresh
+    * @param input the !add command and the file to index
+    */
+   private static void addDocs(String input) {
 
-         // Create a new BibTex parser object, and create a database by reading the corpus file.
-         //   Overriding the methods below to allow for the parser to be able to parse the .bib file
-         //   given for the assignment as it fails to parse due to cross references.
-         BibTeXParser parser = new BibTeXParser(){
-            @Override
-            public void checkStringResolution(Key key, BibTeXString string){}
-            @Override
-            public void checkCrossReferenceResolution(Key key, BibTeXEntry entry){}
-         };
+      if (nrtWriter == null) { println("!add requires near-real-time mode (-nrt <ms>)...\n"); return; }
 
-         BibTeXDatabase db = parser.parse(filter);        // parse the filtered contents of the corpus
-         Map<Key, BibTeXEntry> map = db.getEntries();     // create a map of all the entries in the database
+      String file = input.substring(input.indexOf(' ') + 1).trim();
+      ingester.execute(() -> getDocs(new IndexWriter[]{ nrtWriter }, Arrays.asList(file)));
+   }
 
-         for (BibTeXEntry entry : map.values()) {         // iterate through all the values in the database
+   /**
+    * export will write every match of a query to a file. The matches are walked one page at a time on a single
+    *    searcher, so only a page is held in memory however broad the query is. Each line holds the rank, key,
+    *    citation key and score of a match.
+    * @param input the !export command, the file and the query
+    */
+   private static void export(String input) {
 
-            Document item = new Document();               // document object for each entry
+      String[] items = input.split(" +");                      // !export <file> <type> <info...>
+      if (items.length < 3) { println("Usage: !export <file> <query>\n"); return; }
 
-            boolean foundAuth = false, foundEdit = false; // see if an editor or an author was found
+      String   type = items[2].toLowerCase();
+      String[] info = (items.length > 3) ? Arrays.copyOfRange(items, 3, items.length) : null; // matchall doesnt require info
 
-            // add the type and the key to the document as fields
-            item.add(new TextField("type", entry.getType().getValue(), Field.Store.YES));
+      try {
+         IndexSearcher indexSearcher = searcherManager.acquire(); // every page from the same point in time
 
-            // create a map of all the fields for an entry
-            Map<Key, Value> fields = entry.getFields();
+         try (Writer file = Files.newBufferedWriter(Paths.get(items[1]), StandardCharsets.UTF_8)) {
 
-            // iterate through each of the fields in the map, to populate a document's fields
-            for (Key key : fields.keySet()) {
+            long start = System.nanoTime();
+            long rank  = 0;
+            String order = sortBy;                               // the cursor only fits the order it started with
+            FieldDoc after = null;
+            HitFields item = idFields.get();
+            StringBuilder lines = renderBuffer.get();
 
-               // tokenize and get the term vector positions from the abstract
-               if (key.getValue().equals("abstract")) {
+            while (true) {
 
-                  FieldType field = new FieldType();
-                  field.setStored(true);
-                  field.setTokenized(true);
-                  field.setStoreTermVectors(true);
-                  field.setStoreTermVectorPositions(true);
-                  field.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
-                  item.add(new Field(key.getValue(), fields.get(key).toUserString(), field));
+               Results page = search(indexSearcher, type, info, order, EXPORT_PAGE, after, 0); // every match
+               if (page == null) { println("Something went wrong during parsing..."); return; }
 
+               ScoreDoc[] scores = page.topDocs.scoreDocs;
+               lines.setLength(0);
+               for (ScoreDoc score : scores) {
+                  item.load(indexSearcher, score.doc);          // only load the ids
+                  appendValue(lines.append(++rank).append('\t'), item.get("id"));
+                  appendValue(lines.append('\t'), item.get("bibkey"));
+                  appendScore(lines.append('\t'), score.score).append('\n');
                }
-               else if (key.getValue().equals("author")) { // the author field requires more detail
+               file.append(lines);                               // one write per page
 
-                  foundAuth = true;
-                  // get the value of the author field and check for multiple authors
-                  String authorString = fields.get(key).toUserString();
-                  if (authorString.contains(" and ")) {
+               if (scores.length < EXPORT_PAGE) { break; }      // the last page
+               after = (FieldDoc)scores[scores.length - 1];
+            }
 
-                     String[] authorList = authorString.split("and");
-                     for (String auth: authorList) {    // iterate through each of the authors and add them
-                        item.add(new TextField(key.getValue(), auth, Field.Store.YES));
-                     }
+            println(String.format("Exported %d matches to %s in %.2fs\n", rank, items[1], (System.nanoTime() - start) / 1e9));
+         }
+         finally { searcherManager.release(indexSearcher); }
 
-                  } else item.add(new TextField(key.getValue(), authorString, Field.Store.YES));
-               }
-               else {
-                   if (key.getValue().equals("editor")) { foundEdit = true; } // see if an editor was found
-                   item.add(new TextField(key.getValue(), fields.get(key).toUserString(), Field.Store.YES));
-               }
-            }
+      } catch (IOException e) { println("Export failed: " + e.getMessage() + "\n"); }
+   }
 
-            String value;      // initialize the string value
-            if (foundAuth) {   // author has been found, use it to gen a key
+   /**
+    * keywords will display the most telling terms of the abstract of a paper, read from the term vector stored
+    *    with it and weighted by how rare each term is in the index
+    * @param input the !keywords command and the id or citation key of the paper
+    */
+   private static void keywords(String input) {
 
-               value = genKey( item.getField("author").stringValue(),  // first author's name
-                               item.getField("title").stringValue(),   // title of the document
-                               item.getField("year").stringValue()     // year of publication/release
-                             );
+      String key = input.substring("!keywords".length()).trim();
+      if (key.isEmpty()) { println("Usage: !keywords <key>\n"); return; }
 
-               item.add(new TextField("key", value, Field.Store.YES)); // add key to document
+      try {
+         IndexSearcher indexSearcher = searcherManager.acquire();
 
-            } else if (foundEdit) { // no author found, but editor was, use it to gen key
+         try {
+            int doc = findDoc(indexSearcher, key);
+            if (doc < 0) { println("No paper has the key '" + key + "'...\n"); return; }
 
-               value = genKey( item.getField("editor").stringValue(),  // first editor's name
-                               item.getField("title").stringValue(),   // title of the document
-                               item.getField("year").stringValue()     // year of publication/release
-                             );
+            List<Map.Entry<String, Float>> terms = topTerms(indexSearcher.getIndexReader(), doc, KEYWORDS, 1);
+            if (terms.isEmpty()) { println("The paper has no abstract...\n"); return; }
 
-               item.add(new TextField("key", value, Field.Store.YES)); // add key to document
+            StringBuilder text = renderBuffer.get();
+            text.setLength(0);
+            text.append("Keywords of ").append(key).append(":\n");
+            for (Map.Entry<String, Float> term : terms) {
+               text.append(String.format("\t%-20s %.3f\n", term.getKey(), term.getValue()));
             }
-
-            list.add(item); // add a document to the list of documents
+            println(text.toString());
          }
-      } catch (Exception e) { e.getStackTrace(); }  // something went wrong, display stack trace
-
-      // there are no documents in the index, running the program is useless
-      if (list.size() == 0) { println("Index creation failed..."); System.exit(1); }
+         finally { searcherManager.release(indexSearcher); }
 
-      return list;
+      } catch (IOException e) { println("Keywords failed: " + e.getMessage() + "\n"); }
    }
 
    /**
-    * genKey will (re)generate a key for a bibtex document
-    * @param author author of the document, sometimes is an editor
-    * @param title  title of the document
-    * @param year   release year of the document
-    * @return a key value in the format <AUTH/EDITOR>-<YEAR>-<TITLE>
+    * related will display the papers with abstracts most like the one of a paper. The row of the paper is read
+    *    from the related papers table when it is up to date, otherwise the papers are searched for.
+    * @param input the !related command and the id or citation key of the paper
     */
-   private static String genKey(String author, String title, String year) {
+   private static void related(String input) {
 
-      title = title.contains(":") ? title.substring(0,title.indexOf(":")) : title; // if a title has a ':' use everything before that
+      String key = input.substring("!related".length()).trim();
+      if (key.isEmpty()) { println("Usage: !related <key>\n"); return; }
 
-      String[] key = {
-              author.split(author.contains(",") ? "," : " ")[0],       // last name of the author
-              year,                                                    // year of publication/release
-              String.join("-", title.split(" "))        // title of the document
-      };
+      try {
+         IndexSearcher indexSearcher = searcherManager.acquire();
+
+         try {
+            long start = System.nanoTime();
+            int doc = findDoc(indexSearcher, key);
+            if (doc < 0) { println("No paper has the key '" + key + "'...\n"); return; }
+
+            ScoreDoc[] hits = readRelated(indexSearcher, doc);             // null if the table has no current row
+            if (hits != null) { if (trace) println("Related:: read from " + RELATED_FILE); }
+            else {
+               List<Map.Entry<String, Float>> terms = relatedTerms(indexSearcher.getIndexReader(), doc);
+               hits = searchRelated(indexSearcher, doc, terms, relatedSize > 0 ? relatedSize : pageSize);
+            }
+            relatedLatency.record(System.nanoTime() - start);
+
+            float max = (hits.length > 0) ? hits[0].score : Float.NaN;
+            printScores(indexSearcher, new Results(new TopDocs(hits.length, hits, max), null), "related", 1, console);
+         }
+         finally { searcherManager.release(indexSearcher); }
 
-      return String.join("-", key);                           // format: authorLastName-Year-Title
+      } catch (IOException e) { println("Related failed: " + e.getMessage() + "\n"); }
    }
 
    /**
-    * getInput() will continually get input from the user and process queries
+    * findDoc will find a paper by its citation key in any case, or else by its id
+    * @param indexSearcher the searcher of the index
+    * @param key           the citation key or id
+    * @return the document of the paper, -1 if there is none
     */
-   private static void getInput() {
+   private static int findDoc(IndexSearcher indexSearcher, String key) throws IOException {
 
-      Scanner kyb  = new Scanner(System.in);                   // scanner object...
-      String input;                                            // input holder
+      for (Term term : new Term[]{ new Term(KEY_FIELD, key.toLowerCase()), new Term("id", key) }) {
+         TopDocs top = indexSearcher.search(new TermQuery(term), 1);
+         if (top.scoreDocs.length > 0) { return top.scoreDocs[0].doc; }
+      }
+      return -1;
+   }
 
-      getHelp();                                               // display helpful information
-      while(true) {                                            // continually get user input until !quit command
+   /**
+    * topTerms will weigh every term of the abstract of a paper by its frequency in the abstract times its bm25
+    *    idf, and keep the heaviest. Numbers and terms shorter than 3 characters are left out.
+    * @param reader  the reader of the index
+    * @param doc     the document of the paper
+    * @param size    number of terms to keep
+    * @param minDocs terms found in fewer papers are left out
+    * @return the terms and their weights, heaviest first, empty if the paper has no abstract
+    */
+   private static List<Map.Entry<String, Float>> topTerms(IndexReader reader, int doc, int size, int minDocs)
+         throws IOException {
 
-         System.out.print("Query: "); input = kyb.nextLine();  // get the query information
+      List<Map.Entry<String, Float>> top = new ArrayList<>(size + 1);
+      Terms vector = reader.getTermVector(doc, "abstract");
+      if (vector == null) { return top; }
 
-         if (input.charAt(0) == '!')                           // check for command given
-            if (commands(input)) { continue; } else { break; } // false if quit requested, otherwise continue
+      // a min heap of the heaviest terms so far, ties go to the first term
+      PriorityQueue<Map.Entry<String, Float>> heap = new PriorityQueue<>(size + 1, Map.Entry.comparingByValue());
+      int docs = reader.maxDoc();
+
+      TermsEnum terms = vector.iterator();
+      for (BytesRef term = terms.next(); term != null; term = terms.next()) {
 
-         processQuery(input.split(" "));                // split the input and process it
+         String text = term.utf8ToString();
+         if (text.length() < 3 || text.chars().allMatch(Character::isDigit)) { continue; }
+
+         int freq = reader.docFreq(new Term("abstract", term));
+         if (freq < minDocs) { continue; }                            // only this paper, it relates to nothing
+
+         double idf = Math.log(1 + (docs - freq + 0.5) / (freq + 0.5));
+         heap.add(new AbstractMap.SimpleEntry<>(text, (float)(terms.totalTermFreq() * idf))); // frequency in the abstract
+         if (heap.size() > size) { heap.poll(); }
       }
+
+      top.addAll(heap);
+      top.sort(Map.Entry.<String, Float>comparingByValue().reversed());
+      return top;
    }
 
    /**
-    * processQuery will do some small steps in the overall query process. Afterwards it will call the main query method
-    * @param input an array of the split input by spaces
+    * relatedTerms will find the terms of the query for the papers related to a paper, the heaviest terms of its
+    *    abstract that are found in other papers
+    * @param reader the reader of the index
+    * @param doc    the document of the paper
+    * @return the terms and their weights, heaviest first, empty if the paper has no abstract
     */
-   private static void processQuery(String[] input) {
-
-      String type = input[0].toLowerCase();                                        // get the type of query
-      if (input.length > 1) {                                                      // matchall doesnt require info
-
-         String[] holder = Arrays.copyOfRange(input, 1, input.length);       // remove the type from the query info
-         query(type, holder);                                                      // send the processed information
-      } else { query(type, null); }                                          // matchall doesnt require info
+   private static List<Map.Entry<String, Float>> relatedTerms(IndexReader reader, int doc) throws IOException {
+      return topTerms(reader, doc, RELATED_TERMS, 2);
    }
 
    /**
-    * generalQuery is a helper function of processQuery, it will process a basic query
-    * @param input a query split by spaces
+    * relatedQuery will build the query for the papers with abstracts most like the one of a paper, a disjunction
+    *    of the heaviest terms of its abstract, each boosted by its weight
+    * @param terms the terms of the paper, from relatedTerms
+    * @return the query, null if the paper has no abstract
     */
-   private static void query(String type, String[] input) {
-
-      try {
-
-         String field = null, qString = null;
-         Query query;
+   private static Query relatedQuery(List<Map.Entry<String, Float>> terms) {
 
-         if (input != null && !type.equals("matchall")) { // general error check
+      if (terms.isEmpty()) { return null; }
 
-            field = input[0];
-            qString = String.join(" ", Arrays.copyOfRange(input, 1, input.length));
-            if (trace) println("Type:: " + type + "\nQuery::" + qString + "\nField::" + field );
-         }
+      float max = terms.get(0).getValue();
+      BooleanQuery.Builder query = new BooleanQuery.Builder();
+      for (Map.Entry<String, Float> term : terms) {
+         Query clause = new TermQuery(new Term("abstract", term.getKey()));
+         query.add(new BoostQuery(clause, term.getValue() / max), BooleanClause.Occur.SHOULD);
+      }
+      return query.build();
+   }
 
-         if (trace && type.equals("matchall")) println("Query::" + type); // display some information
+   /**
+    * searchRelated will search for the papers with abstracts most like the one of a paper
+    * @param indexSearcher the searcher of the index
+    * @param doc           the document of the paper
+    * @param terms         the terms of the paper, from relatedTerms
+    * @param size          number of related papers
+    * @return the related papers, the paper itself left out
+    */
+   private static ScoreDoc[] searchRelated(IndexSearcher indexSearcher, int doc, List<Map.Entry<String, Float>> terms,
+                                           int size) throws IOException {
 
-         if (type.equals("disjunction") || type.equals("termrange")) { // these two queries require more work
+      Query query = relatedQuery(terms);
+      if (query == null) { return new ScoreDoc[0]; }
 
-            query = specialGenQuery(type, field, qString);             // use specialGenQuery to get generate our query
-         } else { query = genQuery(type, field, qString); }            // generate the query object
+      List<ScoreDoc> hits = new ArrayList<>(size);
+      for (ScoreDoc hit : indexSearcher.search(query, size + 1).scoreDocs) { // the paper matches itself
+         if (hit.doc != doc && hits.size() < size) { hits.add(hit); }
+      }
+      return hits.toArray(new ScoreDoc[0]);
+   }
 
-         if (query != null) {                                          // general queries can be null (failure to parse)
+   /**
+    * readRelated will read the related papers of a paper from the related papers table, the table is read again
+    *    whenever the file changes
+    * @param indexSearcher the searcher of the index
+    * @param doc           the document of the paper
+    * @return the related papers that are still in the index, null if the table has no row for the paper as it
+    *    is now
+    */
+   private static ScoreDoc[] readRelated(IndexSearcher indexSearcher, int doc) throws IOException {
 
-            TopDocs topDocs = indexSearcher.search(query, MAXDOCS);    // get the top 10 documents
-            scores = topDocs.scoreDocs;                                // get the document scores
+      Path file = Paths.get(dir, RELATED_FILE);
+      if (!Files.exists(file)) { return null; }
 
-            // find out the actual size we will be working with
-            int size = Math.min(MAXDOCS, Math.toIntExact(topDocs.totalHits));
-            numHits  = (int)topDocs.totalHits;
+      RelatedTable table = relatedTable;
+      if (table == null || table.modified != Files.getLastModifiedTime(file).toMillis()) {
+         relatedTable = table = RelatedTable.read(file);
+      }
 
-            printScores(size, type);                                   // display the results of the query
+      IndexReader reader = indexSearcher.getIndexReader();
+      SortedDocValues  key  = MultiDocValues.getSortedValues(reader, KEY_FIELD);
+      NumericDocValues hash = MultiDocValues.getNumericValues(reader, "hash");
+      if (key == null || !key.advanceExact(doc)) { return null; }     // an index without citation keys
 
-         } else { println("Something went wrong during parsing..."); } // there was an issue parsing the general queries...
+      String[] row = table.rows.get(key.binaryValue().utf8ToString());
+      if (row == null || hash == null || !hash.advanceExact(doc) || hash.longValue() != Long.parseLong(row[1])) {
+         return null;                                                 // changed since the table was written
+      }
 
-      } catch (Exception e) { e.printStackTrace(); }                   // general try/catch for errors
+      List<ScoreDoc> hits = new ArrayList<>(row.length / 2);
+      for (int i = 3; i + 1 < row.length; i += 2) {
+         TopDocs top = indexSearcher.search(new TermQuery(new Term(KEY_FIELD, row[i])), 1);
+         if (top.scoreDocs.length > 0) { hits.add(new ScoreDoc(top.scoreDocs[0].doc, Float.parseFloat(row[i + 1]))); }
+      }
+      return hits.toArray(new ScoreDoc[0]);
    }
 
    /**
-    * specialGenQuery is a helper method to query, it will perform the actions required for
-    *    the term-range and disjunction queries.
-    * @param type  the type of query
-    * @param field the field to perform a query on
-    * @param input the actual query
-    * @return the specified query object
+    * updateRelated will bring the related papers table up to date with the latest commit of the index. Rows of
+    *    new and changed papers are computed, as are rows that name a paper that changed or is gone, and rows that
+    *    a new or changed paper would now join. Every other row is kept as it is. Rows are keyed by the citation
+    *    key, the only identity that is unique. The table is written to a temporary file and moved over the old one.
+    * @param directories the directories of the shards
     */
-   private static Query specialGenQuery(String type, String field, String input) {
+   private static void updateRelated(Directory[] directories) throws IOException {
 
-      String[] items; // holder for the input, different queries have different needs
-      input = input.toLowerCase();
+      long start = System.nanoTime();
+      Path file = Paths.get(dir, RELATED_FILE);
+      RelatedTable old = Files.exists(file) ? RelatedTable.read(file) : new RelatedTable(0, 0);
+      int computed = 0, kept = 0;
 
-      switch(type) {
+      try (MultiReader reader = openReader(directories)) {
 
-         case ("termrange"):
-            items = input.split(",");
-            return new TermRangeQuery(field, new BytesRef(items[0]), new BytesRef(items[1]), true, true);
+         // the citation key and content hash of every live paper
+         String[] ids = new String[reader.maxDoc()];
+         long[] hashes = new long[reader.maxDoc()];
+         for (LeafReaderContext leaf : reader.leaves()) {
 
-         case ("disjunction"):
-            ArrayList<Query> queryCollection = new ArrayList<>();                         // create a collection of queries
-            input = input.trim();                                                         // remove trailing/leading spaces.
-            field = field.replace(";", "");                             // separate the fields
-            String[] fields = input.substring(0, input.indexOf(";")).split(" ");    // get all of the fields
-            String phrase   = "(" + input.substring(input.indexOf(";") + 1).trim() + ")";  // make a phrase for the parser
+            SortedDocValues  id   = leaf.reader().getSortedDocValues(KEY_FIELD);
+            NumericDocValues hash = leaf.reader().getNumericDocValues("hash");
+            if (id == null || hash == null) { continue; }              // an empty segment
 
-            try {
+            Bits live = leaf.reader().getLiveDocs();
+            for (int doc = id.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = id.nextDoc()) {
+               if ((live == null || live.get(doc)) && hash.advanceExact(doc)) {
+                  ids[leaf.docBase + doc] = id.binaryValue().utf8ToString();
+                  hashes[leaf.docBase + doc] = hash.longValue();
+               }
+            }
+         }
 
-               for(String item: fields)                                                    // query each field against the phrase
-                  queryCollection.add(new QueryParser(item, analyzer).parse(phrase));      // add each query to the collection
+         // papers that are gone or changed, rows naming them are out of date, and papers that are new or changed,
+         // they may belong in the rows of papers that did not change
+         Set<String> stale = new HashSet<>(old.rows.keySet());
+         List<BytesRef> fresh = new ArrayList<>();
+         Set<String> freshTerms = new HashSet<>();                     // the abstract terms of those papers
+         for (int doc = 0; doc < ids.length; doc++) {
+            if (ids[doc] == null) { continue; }
+            String[] row = old.rows.get(ids[doc]);
+            if (row != null && Long.parseLong(row[1]) == hashes[doc]) { stale.remove(ids[doc]); }
+            else {
+               fresh.add(new BytesRef(ids[doc]));
+               if (!old.rows.isEmpty()) { abstractTerms(reader, doc, freshTerms); } // only needed to keep rows
+            }
+         }
+         Query added = fresh.isEmpty() ? null : new TermInSetQuery(KEY_FIELD, fresh);
 
-               return new DisjunctionMaxQuery(queryCollection, Float.parseFloat(field));   // return a new disjunction query
+         IndexSearcher indexSearcher = new IndexSearcher(reader);
+         indexSearcher.setQueryCache(null);                           // every query is different
+         RelatedTable table = new RelatedTable(relatedSize, 0);
+         StringBuilder line = new StringBuilder();
 
-            } catch (Exception e) { e.getStackTrace(); }
+         for (int doc = 0; doc < ids.length; doc++) {
+
+            if (ids[doc] == null) { continue; }                       // deleted
+            String[] row = old.rows.get(ids[doc]);
+
+            boolean full = old.size == relatedSize || row != null && row.length >= 3 + 2 * relatedSize;
+            if (row == null || !full || stale.contains(ids[doc]) || names(row, stale)) { row = null; }
+            else {
+               row = Arrays.copyOf(row, Math.min(row.length, 3 + 2 * relatedSize)); // -related may be smaller now
+               if (joined(indexSearcher, doc, row, added, freshTerms, ids)) { row = null; }
+            }
+
+            if (row != null) { kept++; }
+            else {
+               List<Map.Entry<String, Float>> terms = relatedTerms(reader, doc);
+               ScoreDoc[] hits = searchRelated(indexSearcher, doc, terms, relatedSize);
+               row = new String[3 + 2 * hits.length];
+               row[0] = ids[doc];
+               row[1] = Long.toString(hashes[doc]);
+               line.setLength(0);
+               for (Map.Entry<String, Float> term : terms) {
+                  line.append(line.length() > 0 ? " " : "").append(term.getKey()).append('=').append(term.getValue());
+               }
+               row[2] = line.toString();
+               for (int i = 0; i < hits.length; i++) {
+                  row[3 + 2 * i] = ids[hits[i].doc];
+                  row[4 + 2 * i] = Float.toString(hits[i].score);
+               }
+               computed++;
+            }
+            table.rows.put(ids[doc], row);
+         }
+
+         Path temp = Paths.get(dir, RELATED_FILE + ".tmp");
+         try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            out.append("#related\t").append(Integer.toString(relatedSize)).append('\n');
+            for (String[] row : table.rows.values()) {
+               line.setLength(0);
+               line.append(row[0]);
+               for (int i = 1; i < row.length; i++) { line.append('\t').append(row[i]); }
+               out.append(line.append('\n'));
+            }
+         }
+         Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
       }
-      return null; // something happened when querying, return null
+
+      println(String.format("Related papers: %d computed, %d kept in %.2fs", computed, kept, (System.nanoTime() - start) / 1e9));
    }
 
    /**
-    * genQuery is a helper method for query, it will return the appropriate structure for a query based
-    *    on the type type of query requested
-    * @param type  type of query
-    * @param field field of the query
-    * @param input the actual query
-    * @return query object
+    * joined is a helper function for updateRelated, it will check if a new or changed paper is now more like a
+    *    paper than the least related paper of its row, or would fill a row that has room. Only papers that share
+    *    a term with the query of the row can match it, any other row is kept without a search. The query is
+    *    rebuilt from the terms written with the row and both papers are scored by it against the current index,
+    *    so the scores written with the row are not compared against.
+    * @param indexSearcher the searcher of the index
+    * @param doc           the document of the paper
+    * @param row           the row of the paper
+    * @param added         the new and changed papers, null if there are none
+    * @param freshTerms    the abstract terms of the new and changed papers
+    * @param ids           citation key of every document
+    * @return true if the row has to be computed again
     */
-   private static Query genQuery(String type, String field, String input) {
-
-      input = input.toLowerCase();
+   private static boolean joined(IndexSearcher indexSearcher, int doc, String[] row, Query added, Set<String> freshTerms,
+                                 String[] ids) throws IOException {
 
-      switch(type) {
+      if (added == null || row.length < 3) { return false; }        // nothing new, or no abstract to relate to
 
-         case("term"):        return new TermQuery(new Term(field, input));
-         case("wildcard"):    return new WildcardQuery(new Term(field, input));
-         case("prefix"):      return new PrefixQuery(new Term(field, input));
-         case("fuzzy"):       return new FuzzyQuery(new Term(field, input));
-         case("regex"):       return new RegexpQuery(new Term(field, input));
-         case("matchall"):    return new MatchAllDocsQuery();
-         case("phrase"):      return genQuery(field, input);
-         case("multiphrase"): return genQuery(field, input);
-         case("boolean"):     return genQuery(field, input);
-         default:             println("Invalid query type given..."); return null;
+      List<Map.Entry<String, Float>> terms = new ArrayList<>();       // the query of the row as it was written
+      boolean shared = false;
+      for (String item : row[2].split(" ")) {
+         int split = item.lastIndexOf('=');
+         terms.add(new AbstractMap.SimpleEntry<>(item.substring(0, split), Float.parseFloat(item.substring(split + 1))));
+         shared |= freshTerms.contains(item.substring(0, split));
       }
+      if (!shared) { return false; }                                  // no new paper can match the query
+      Query like = relatedQuery(terms);
+
+      boolean full = row.length >= 3 + 2 * relatedSize;
+      String last = full ? row[row.length - 2] : null;                // the least related paper of the row
+      BooleanQuery.Builder among = new BooleanQuery.Builder().add(added, BooleanClause.Occur.SHOULD);
+      if (last != null) { among.add(new TermQuery(new Term(KEY_FIELD, last)), BooleanClause.Occur.SHOULD); }
+
+      Query query = new BooleanQuery.Builder().add(like, BooleanClause.Occur.MUST)
+                                              .add(among.build(), BooleanClause.Occur.FILTER).build();
+      ScoreDoc[] top = indexSearcher.search(query, 1).scoreDocs;
+      if (top.length == 0) { return false; }
+      return last == null || !last.equals(ids[top[0].doc]);          // a new paper made the row, or beat its last
    }
 
    /**
-    * genQuery is an overloaded version of the above method, it will process general queries that require
-    *   parsing (phrase, boolean, and multiphrase)
-    * @param field field to query
-    * @param input the actual query
-    * @return query object
+    * abstractTerms is a helper function for updateRelated, it will collect the terms of the abstract of a paper,
+    *    read from its term vector
+    * @param reader the reader of the index
+    * @param doc    the document of the paper
+    * @param terms  where the terms are added
     */
-   private static Query genQuery(String field, String input) {
+   private static void abstractTerms(IndexReader reader, int doc, Set<String> terms) throws IOException {
 
-      try {
+      Terms vector = reader.getTermVector(doc, "abstract");
+      if (vector == null) { return; }                                 // no abstract, it relates to nothing
 
-         QueryParser qParser = new QueryParser(field, analyzer);
-         return qParser.parse(input);
-      } catch(Exception e) { println(e.getMessage()); }
+      TermsEnum each = vector.iterator();
+      for (BytesRef term = each.next(); term != null; term = each.next()) { terms.add(term.utf8ToString()); }
+   }
 
-      return null;
+   /**
+    * names is a helper function for updateRelated, it will check if a row names any of the given papers
+    * @param row the row of the table
+    * @param ids the ids of the papers
+    * @return true if one of the related papers of the row is in ids
+    */
+   private static boolean names(String[] row, Set<String> ids) {
+
+      for (int i = 3; i < row.length; i += 2) { if (ids.contains(row[i])) { return true; } }
+      return false;
    }
 
    /**
-    * printScores will display the scores of documents from a query
-    * @param size the size of scores list
-    * @param type  type of query
+    * RelatedTable is the related papers table of an index. The first line holds the number of related papers
+    *    per paper, then there is a line per paper holding its citation key, its content hash when the line was
+    *    written, the terms of its query as term=weight separated by spaces, and the citation key and score of
+    *    each related paper, separated by tabs.
     */
-   private static void printScores(int size, String type) {
+   private static class RelatedTable {
+
+      final Map<String, String[]> rows = new LinkedHashMap<>();    // citation key -> the fields of its line
+      final int  size;                                              // related papers per paper, fewer if there are not as many
+      final long modified;                                          // ms the file was last modified
 
-      if (scores.length == 0) { println("No results..."); return; }  // no results, dont want errors
-      println("Results for " + type + " query:");                    // display the query type
+      RelatedTable(int size, long modified) { this.size = size; this.modified = modified; }
 
-      for (int i = 0; i < size; i++) {                               // display upto MAXDOCS
+      /**
+       * read will read the table from its file
+       * @param file the file of the table
+       * @return the table
+       */
+      static RelatedTable read(Path file) throws IOException {
 
-         String out = String.format("\tDoc: %-7d   Score: %.3f",
-                                    scores[i].doc, scores[i].score); // display document info
-         println(out);
+         try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+
+            String[] header = in.readLine().split("\t");              // #related <size>
+            RelatedTable table = new RelatedTable(Integer.parseInt(header[1]), Files.getLastModifiedTime(file).toMillis());
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+               String[] row = line.split("\t");
+               if (row.length >= 2) { table.rows.put(row[0], row); }
+            }
+            return table;
+         }
       }
+   }
+
+   /**
+    * getStats will display the query, indexing and refresh metrics
+    * @param out where the metrics are written
+    */
+   private static void getStats(PrintWriter out) {
+
+      for (Map.Entry<String, Latency> metric : metrics.entrySet())
+         out.println(String.format("%-15s %s", metric.getKey() + ":", metric.getValue()));
 
-      println("\tTotal hits: " + numHits + "\n");                    // display total number of hits
+      out.println(String.format("%-15s %d", "query_hits:", queryHits.sum()));
+      out.println(String.format("%-15s %d", "query_failures:", queryFailures.sum()));
+      out.println(String.format("%-15s %s", "result_cache:", (resultCache != null ? resultCache : "disabled")));
+      out.println(String.format("%-15s %s\n", "parsed_cache:", (parsedCache != null ? parsedCache : "disabled")));
    }
 
    /**
-    * commands is a helper function for query, it will return false for a quit command,
-    *    otherwise it will process a single command.
-    * @param input the input from the user
-    * @return false if quit command, otherwise true
+    * getPrometheus will write every metric in the prometheus text format, latencies are exported as summaries
+    * @return the metrics
     */
-   private static boolean commands(String input) {
+   private static String getPrometheus() {
 
-      String cmd = input.split(" ")[0].toLowerCase();
+      StringBuilder out = new StringBuilder(4096);
 
-      switch (cmd) {
+      for (Map.Entry<String, Latency> metric : metrics.entrySet()) {
 
-         case ("!quit"):      return false;                       // exit command
-         case ("!help"):      getHelp(); break;                   // display commands available
-         case ("!queryhelp"): getQueryHelp(); break;              // separated due to size
-         case ("!trace"):                                         // turn tracing on/off
-            trace = !trace;
-            println("Tracing " + (trace ? "enabled...\n" : "disabled...\n")); break;
+         String  name    = "searcher_" + metric.getKey() + "_seconds";
+         Latency latency = metric.getValue();
 
-         default: println("'" + cmd + "' is an invalid command"); // reached an invalid command
+         out.append("# TYPE ").append(name).append(" summary\n");
+         for (double quantile : new double[]{ 0.5, 0.9, 0.99, 0.999 }) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+               .append(latency.percentile(quantile * 100) / 1e9).append('\n');
+         }
+         out.append(name).append("_sum ").append(latency.total() / 1e9).append('\n');
+         out.append(name).append("_count ").append(latency.count()).append('\n');
       }
 
-      return true;
+      counter(out, "searcher_query_hits_total", queryHits.sum());
+      counter(out, "searcher_query_failures_total", queryFailures.sum());
+      if (resultCache != null) {
+         counter(out, "searcher_result_cache_hits_total", resultCache.hits());
+         counter(out, "searcher_result_cache_misses_total", resultCache.misses());
+      }
+      if (parsedCache != null) {
+         counter(out, "searcher_parsed_cache_hits_total", parsedCache.hits());
+         counter(out, "searcher_parsed_cache_misses_total", parsedCache.misses());
+      }
+
+      return out.toString();
+   }
+
+   private static void counter(StringBuilder out, String name, long value) {
+      out.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+   }
+
+   /**
+    * serveMetrics will start a local http endpoint serving the metrics at /metrics
+    */
+   private static void serveMetrics() throws IOException {
+
+      HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), metricsPort), 0);
+      server.createContext("/metrics", exchange -> {
+         byte[] body = getPrometheus().getBytes(StandardCharsets.UTF_8);
+         exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+         exchange.sendResponseHeaders(200, body.length);
+         try (OutputStream out = exchange.getResponseBody()) { out.write(body); }
+      });
+      server.start();                                                 // runs on its own thread
+
+      println("Serving metrics on http://" + server.getAddress().getHostString() + ":" + metricsPort + "/metrics");
+   }
+
+   /**
+    * metric will create a latency histogram and register it under a name
+    * @param name name of the metric
+    * @return the histogram
+    */
+   private static Latency metric(String name) {
+      Latency latency = new Latency();
+      metrics.put(name, latency);
+      return latency;
    }
 
    /**
@@ -460,7 +3685,16 @@ public class searcher {
               "Available options:\n" +
               "\t!quit:  will stop the program\n" +
               "\t!help:  will display the available options\n" +
-              "\t!trace: will enable/disable tracing\n" +
+              "\t!sort <relevance|year|-year>: will change the order of the results\n" +
+              "\t!facets: will enable/disable the hits per type, year, author and journal with every query\n" +
+              "\t!trace: will enable/disable tracing, including the time taken by each step of a query\n" +
+              "\t!next: will display the next page of results of the last query\n" +
+              "\t!size <n>: will change the number of results per page\n" +
+              "\t!export <file> <query>: will write every match of a query to a file, one page at a time\n" +
+              "\t!keywords <key>: will display the most telling terms of the abstract of a paper, by id or citation key\n" +
+              "\t!related <key>: will display the papers with abstracts most like the one of a paper\n" +
+              "\t!stats: will display query, indexing and refresh metrics\n" +
+              "\t!add <file>: will index a .bib file in the background, requires -nrt\n" +
               "\t!queryHelp: will display useful information about querying \n";
       println(out);
    }
@@ -493,10 +3727,123 @@ public class searcher {
               "\n\tprefix query: 'prefix abstract stu'\n" +
               "\t\twill perform a query on all words in the abstract that begin with stu\n" +
               "\n\twildcard query: 'wildcard year 201*'\n" +
-              "\t\twill perform a query on years that are within the range 2010 to 2019\n";
+              "\t\twill perform a query on years that are within the range 2010 to 2019\n" +
+              "\n\tsuggest query: 'suggest distributed comp'\n" +
+              "\t\twill complete the titles and authors that begin with 'distributed comp', requires an index built with -ngram\n";
       println(out);
    }
 
+   /**
+    * Lru is a bounded cache that evicts the least recently used entry once it is full. Entries can also
+    *    expire after a fixed time. Hits and misses are counted so the hit rate can be displayed.
+    */
+   private static class Lru<K, V> {
+
+      private final LinkedHashMap<K, Object[]> map;                       // key -> { value, time added }
+      private final long ttl;                                             // ms an entry is valid, 0 is forever
+      private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+      Lru(int size, long ttl) {
+         this.ttl = ttl;
+         this.map = new LinkedHashMap<K, Object[]>(16, 0.75f, true) {    // access order, eldest is least recent
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Object[]> eldest) { return size() > size; }
+         };
+      }
+
+      /**
+       * get will find a cached value
+       * @param key the key of the value
+       * @return the value, null if it is not cached or has expired
+       */
+      @SuppressWarnings("unchecked")
+      synchronized V get(K key) {
+
+         Object[] entry = map.get(key);
+         if (entry != null && ttl > 0 && System.currentTimeMillis() - (long)entry[1] > ttl) {
+            map.remove(key); entry = null;                                // expired
+         }
+
+         if (entry == null) { misses.increment(); return null; }
+         hits.increment();
+         return (V)entry[0];
+      }
+
+      long hits()   { return hits.sum(); }
+      long misses() { return misses.sum(); }
+
+      synchronized void put(K key, V value) { map.put(key, new Object[]{ value, System.currentTimeMillis() }); }
+      synchronized void clear()             { map.clear(); }
+      synchronized int size()               { return map.size(); }
+
+      @Override
+      public String toString() {
+         long hit = hits.sum(), total = hit + misses.sum();
+         return String.format("size=%d hits=%d misses=%d hit rate=%.1f%%", size(), hit, total - hit,
+                              total == 0 ? 0.0 : 100.0 * hit / total);
+      }
+   }
+
+   /**
+    * Latency is a lock free latency histogram. Values are kept in log-linear buckets (16 per power of two),
+    *    so percentiles are accurate to about 6% no matter how many values are recorded.
+    */
+   private static class Latency {
+
+      private static final int SUB = 16;                                  // buckets per power of two
+
+      private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB);
+      private final LongAdder count = new LongAdder(), total = new LongAdder();
+      private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+      /**
+       * record will add a single value to the histogram
+       * @param nanos the latency in nanoseconds
+       */
+      void record(long nanos) {
+         buckets.incrementAndGet(bucket(Math.max(nanos, 0)));
+         count.increment(); total.add(nanos); max.accumulate(nanos);
+      }
+
+      /**
+       * percentile will find the value at a percentile
+       * @param p the percentile, between 0 and 100
+       * @return the upper bound of the bucket holding the percentile in nanoseconds
+       */
+      long percentile(double p) {
+
+         long target = (long)Math.ceil(count.sum() * p / 100), seen = 0;
+         for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= target && seen > 0) { return Math.min(value(i + 1) - 1, max.get()); }
+         }
+         return max.get();
+      }
+
+      long count() { return count.sum(); }
+      long total() { return total.sum(); }
+
+      private static int bucket(long nanos) {
+         if (nanos < SUB) { return (int)nanos; }                          // small values get a bucket each
+         int exp = 63 - Long.numberOfLeadingZeros(nanos);
+         return (exp - 3) * SUB + (int)((nanos >>> (exp - 4)) & (SUB - 1));
+      }
+
+      private static long value(int bucket) {                              // lower bound of a bucket
+         if (bucket < SUB) { return bucket; }
+         return (long)(SUB + bucket % SUB) << (bucket / SUB - 1);
+      }
+
+      @Override
+      public String toString() {
+         long n = count.sum();
+         if (n == 0) { return "no samples"; }
+         return String.format("count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms",
+                              n, total.sum() / 1e6 / n, percentile(50) / 1e6, percentile(90) / 1e6,
+                              percentile(99) / 1e6, percentile(99.9) / 1e6, max.get() / 1e6);
+      }
+   }
+
    /**
     * getDir will return the working directory
     * @return the working directory